@@ -2,20 +2,33 @@
 package st.redline.classloader;
 
 import st.redline.compiler.Compiler;
+import st.redline.compiler.InstanceClassGenerator;
 import st.redline.core.PrimObject;
+import st.redline.core.ReferenceSite;
 
 import java.io.*;
+import java.lang.reflect.Field;
 import java.util.*;
 
 import static st.redline.compiler.SmalltalkGeneratingVisitor.DEFAULT_IMPORTED_PACKAGE;
 
 public class SmalltalkClassLoader extends ClassLoader {
 
+    // The runtime, bound once as it is created so runtime classes need not ask the thread for it. A JVM holds one
+    // Smalltalk runtime: the statics below and the constants of generated classes all belong to it.
+    private static volatile SmalltalkClassLoader RUNTIME;
+
     // Special Object instance values set during bootstrapping.
     private static PrimObject NIL;
     private static PrimObject TRUE;
     private static PrimObject FALSE;
 
+    // Canonical SmallIntegers for MIN_CACHED_INTEGER to MAX_CACHED_INTEGER, and their class, resolved on first use.
+    public static final int MIN_CACHED_INTEGER = -1024;
+    public static final int MAX_CACHED_INTEGER = 1024;
+    private static PrimObject[] SMALL_INTEGERS;
+    private static PrimObject SMALL_INTEGER;
+
     private final SourceFinder sourceFinder;
     private final Map<String, Class> classCache;
     private final Map<String, PrimObject> objectCache;
@@ -30,11 +43,22 @@ public class SmalltalkClassLoader extends ClassLoader {
         this.objectCache = new HashMap<>();
         this.packageCache = new HashMap<>();
         this.instantiatingName = new Stack<>();
+        bindRuntime(this);
 
         // initialize Object cache with bootstrapped objects.
         bootstrapper.bootstrap(this);
     }
 
+    private static synchronized void bindRuntime(SmalltalkClassLoader runtime) {
+        if (RUNTIME != null)
+            throw new IllegalStateException("A Smalltalk runtime is already bound to this JVM.");
+        RUNTIME = runtime;
+    }
+
+    public static SmalltalkClassLoader runtime() {
+        return RUNTIME;
+    }
+
     public PrimObject findObject(String name) {
         //System.out.println("** findObject " + name);
         PrimObject cls = cachedObject(name);
@@ -86,6 +110,7 @@ public class SmalltalkClassLoader extends ClassLoader {
     public void cacheObject(String name, PrimObject object) {
         //System.out.println("** cacheObject " + object + " as " + name);
         objectCache.put(name, object);
+        ReferenceSite.invalidate(name);
     }
 
     public Class findClass(String name) throws ClassNotFoundException {
@@ -134,6 +159,26 @@ public class SmalltalkClassLoader extends ClassLoader {
         return defineClass(null, bytes, 0, bytes.length);
     }
 
+    public Class<? extends PrimObject> defineInstanceClass(String className, Class<? extends PrimObject> superclass, List<String> fieldNames) {
+        // The instance class of a class being defined again is kept, as the methods compiled for it refer to it.
+        String name = InstanceClassGenerator.instanceClassName(className);
+        Class<?> cls = findLoadedClass(name);
+        if (cls == null) {
+            byte[] bytes = InstanceClassGenerator.generate(className, superclass.getName(), fieldNames);
+            return defineClass(null, bytes, 0, bytes.length).asSubclass(PrimObject.class);
+        }
+        if (cls.getSuperclass() != superclass || !fieldNames.equals(declaredFieldNames(cls)))
+            throw new IllegalStateException("The instance variables of '" + className + "' cannot be changed once defined.");
+        return cls.asSubclass(PrimObject.class);
+    }
+
+    private List<String> declaredFieldNames(Class<?> cls) {
+        List<String> names = new ArrayList<String>();
+        for (Field field : cls.getDeclaredFields())
+            names.add(field.getName());
+        return names;
+    }
+
     @SuppressWarnings("unchecked")
     private Source findSource(String name) {
         Source source = sourceFinder.find(name);
@@ -187,6 +232,19 @@ public class SmalltalkClassLoader extends ClassLoader {
         return TRUE;
     }
 
+    public PrimObject[] smallIntegers() {
+        return SMALL_INTEGERS;
+    }
+
+    public PrimObject smallIntegerClass() {
+        return SMALL_INTEGER;
+    }
+
+    public void smallIntegers(PrimObject smallIntegerClass, PrimObject[] smallIntegers) {
+        SMALL_INTEGER = smallIntegerClass;
+        SMALL_INTEGERS = smallIntegers;
+    }
+
     public Class loadScript(String name) throws ClassNotFoundException {
         importAll(packageName(name));
         return loadClass(name);
@@ -217,9 +275,11 @@ public class SmalltalkClassLoader extends ClassLoader {
 
     public void importAll(String packageName) {
         //System.out.println("** importAll: " + packageName + " " + packageCache.containsKey(packageName));
-        if (!packageCache.containsKey(packageName))
+        if (!packageCache.containsKey(packageName)) {
             for (Source source : sourceFinder.findIn(packageName))
                 addImport(packageName, source);
+            ReferenceSite.invalidateAll();
+        }
     }
 
     private void addImport(String packageName, Source source) {
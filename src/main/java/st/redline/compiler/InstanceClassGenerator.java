@@ -0,0 +1,47 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution. */
+package st.redline.compiler;
+
+import org.objectweb.asm.*;
+
+import java.util.*;
+
+// Generates the JVM class of the instances of a Smalltalk class, with a field for each instance variable it adds.
+
+public class InstanceClassGenerator implements Opcodes {
+
+    public static final String INSTANCE_CLASS_SUFFIX = "$Instance";
+
+    private static final String OBJECT = "Lst/redline/core/PrimObject;";
+
+    public static String instanceClassName(String className) {
+        return className + INSTANCE_CLASS_SUFFIX;
+    }
+
+    public static byte[] generate(String className, String superclassName, List<String> fieldNames) {
+        String name = instanceClassName(className).replace('.', '/');
+        String superName = superclassName.replace('.', '/');
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES + ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_8, ACC_PUBLIC + ACC_SUPER, name, null, superName, null);
+        for (String fieldName : fieldNames)
+            cw.visitField(ACC_PUBLIC, fieldName, OBJECT, null, null).visitEnd();
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, superName, "<init>", "()V", false);
+        if (!fieldNames.isEmpty()) {
+            mv.visitMethodInsn(INVOKESTATIC, "st/redline/classloader/SmalltalkClassLoader", "runtime", "()Lst/redline/classloader/SmalltalkClassLoader;", false);
+            mv.visitMethodInsn(INVOKEVIRTUAL, "st/redline/classloader/SmalltalkClassLoader", "nilInstance", "()" + OBJECT, false);
+            mv.visitVarInsn(ASTORE, 1);
+            for (String fieldName : fieldNames) {
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitVarInsn(ALOAD, 1);
+                mv.visitFieldInsn(PUTFIELD, name, fieldName, OBJECT);
+            }
+        }
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+}
@@ -5,6 +5,8 @@ import org.antlr.v4.runtime.misc.*;
 import org.antlr.v4.runtime.tree.*;
 import org.objectweb.asm.*;
 import st.redline.classloader.*;
+import st.redline.core.PrimClass;
+import st.redline.core.PrimObject;
 
 import java.math.*;
 import java.util.*;
@@ -13,15 +15,28 @@ public class SmalltalkGeneratingVisitor extends SmalltalkBaseVisitor<Void> imple
 
     public static final String DEFAULT_IMPORTED_PACKAGE = "st.redline.kernel";
 
-    private static final String[] SIGNATURES = {
-            "(Ljava/lang/String;)Lst/redline/core/PrimObject;",
-            "(Lst/redline/core/PrimObject;Ljava/lang/String;)Lst/redline/core/PrimObject;",
-            "(Lst/redline/core/PrimObject;Lst/redline/core/PrimObject;Ljava/lang/String;)Lst/redline/core/PrimObject;",
-            "(Lst/redline/core/PrimObject;Lst/redline/core/PrimObject;Lst/redline/core/PrimObject;Ljava/lang/String;)Lst/redline/core/PrimObject;",
-            "(Lst/redline/core/PrimObject;Lst/redline/core/PrimObject;Lst/redline/core/PrimObject;Lst/redline/core/PrimObject;Ljava/lang/String;)Lst/redline/core/PrimObject;",
-            "(Lst/redline/core/PrimObject;Lst/redline/core/PrimObject;Lst/redline/core/PrimObject;Lst/redline/core/PrimObject;Lst/redline/core/PrimObject;Ljava/lang/String;)Lst/redline/core/PrimObject;"
-    };
+    private static final String CELL = "st/redline/core/PrimCell";
+    private static final String CELLS = "[Lst/redline/core/PrimCell;";
+    private static final String BLOCK_ANSWER = "st/redline/core/PrimBlockAnswer";
+    private static final String SMALL_INTEGER = "st/redline/core/PrimSmallInteger";
+    // The name the home token of ^ in blocks is captured under, which no variable can have.
+    private static final String HOME = "^";
+    // The name the receiver of a method is captured under by the blocks in it that use instance variables.
+    private static final String SELF = "self";
+    private static final String OBJECT = "Lst/redline/core/PrimObject;";
+
+    private static final Handle SEND_BOOTSTRAP = new Handle(Opcodes.H_INVOKESTATIC, "st/redline/core/SendSite", "bootstrap", "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/String;)Ljava/lang/invoke/CallSite;", false);
+    private static final Handle SEND_SUPER_BOOTSTRAP = new Handle(Opcodes.H_INVOKESTATIC, "st/redline/core/SuperSendSite", "bootstrap", "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/String;)Ljava/lang/invoke/CallSite;", false);
+    private static final Handle LITERAL_BOOTSTRAP = new Handle(Opcodes.H_INVOKESTATIC, "st/redline/core/LiteralSite", "bootstrap", "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/Object;)Ljava/lang/invoke/CallSite;", false);
+    private static final Handle CONSTANT_BOOTSTRAP = new Handle(Opcodes.H_INVOKESTATIC, "st/redline/core/LiteralSite", "bootstrapConstant", "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;", false);
+    private static final Handle REFERENCE_BOOTSTRAP = new Handle(Opcodes.H_INVOKESTATIC, "st/redline/core/ReferenceSite", "bootstrap", "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/String;)Ljava/lang/invoke/CallSite;", false);
+    private static final Handle SELECTOR_BOOTSTRAP = new Handle(Opcodes.H_INVOKESTATIC, "st/redline/core/Selector", "bootstrap", "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/String;)Ljava/lang/invoke/CallSite;", false);
     private static final Map<String, Integer> OPCODES = new HashMap<String, Integer>();
+    private static final Set<String> INLINED_SELECTORS = new HashSet<String>(Arrays.asList(
+            "ifTrue:", "ifFalse:", "ifTrue:ifFalse:", "ifFalse:ifTrue:", "and:", "or:", "ifNil:",
+            "whileTrue:", "whileFalse:", "timesRepeat:", "to:do:", "to:by:do:"));
+    private static final Set<String> SPECIAL_SELECTORS = new HashSet<String>(Arrays.asList(
+            "+", "-", "*", "/", "//", "\\\\", "<", ">", "<=", ">=", "=", "~=", "bitAnd:", "bitOr:"));
     private static final int BYTECODE_VERSION;
     static {
         int compareTo18 = new BigDecimal(System.getProperty("java.specification.version")).compareTo(new BigDecimal("1.8"));
@@ -35,6 +50,8 @@ public class SmalltalkGeneratingVisitor extends SmalltalkBaseVisitor<Void> imple
     private final Stack<SmalltalkVisitor<Void>> visitors = new Stack<SmalltalkVisitor<Void>>();
     private final Source source;
     private byte[] classBytes = null;
+    private SmalltalkParser.ScriptContext script;
+    private Set<String> instanceVariableNames;
 
     public SmalltalkGeneratingVisitor(Source source) {
         this.source = source;
@@ -46,6 +63,7 @@ public class SmalltalkGeneratingVisitor extends SmalltalkBaseVisitor<Void> imple
     }
 
     public Void visitScript(@NotNull SmalltalkParser.ScriptContext ctx) {
+        script = ctx;
         currentVisitor().visitScript(ctx);
         return null;
     }
@@ -83,6 +101,51 @@ public class SmalltalkGeneratingVisitor extends SmalltalkBaseVisitor<Void> imple
         return source.packageName();
     }
 
+    private String instanceClassName() {
+        return InstanceClassGenerator.instanceClassName(fullClassName());
+    }
+
+    private Set<String> instanceVariableNames() {
+        // Those the class of this source declares in the subclass:instanceVariableNames:... send defining it, and
+        // those of its superclass, which is loaded to find them.
+        if (instanceVariableNames == null) {
+            instanceVariableNames = new HashSet<String>();
+            SmalltalkParser.KeywordSendContext definition = classDefinition(script);
+            if (definition != null) {
+                String superclass = definition.binarySend().getText().trim();
+                SmalltalkClassLoader classLoader = SmalltalkClassLoader.runtime();
+                if (classLoader != null && !superclass.equals(className())) {
+                    PrimObject object = classLoader.findObject(classLoader.importForBy(superclass, packageName()));
+                    if (object instanceof PrimClass)
+                        instanceVariableNames.addAll(((PrimClass) object).instanceVariableNames());
+                }
+                String names = definition.keywordMessage().keywordPair(1).binarySend().getText().trim();
+                if (names.length() > 1 && names.startsWith("'") && names.endsWith("'"))
+                    for (String name : names.substring(1, names.length() - 1).trim().split("\\s+"))
+                        if (!name.isEmpty())
+                            instanceVariableNames.add(name);
+            }
+        }
+        return instanceVariableNames;
+    }
+
+    private SmalltalkParser.KeywordSendContext classDefinition(ParseTree tree) {
+        if (tree instanceof SmalltalkParser.KeywordSendContext) {
+            SmalltalkParser.KeywordSendContext keywordSend = (SmalltalkParser.KeywordSendContext) tree;
+            List<SmalltalkParser.KeywordPairContext> keywordPairs = keywordSend.keywordMessage().keywordPair();
+            if (keywordPairs.size() > 1 && "subclass:".equals(keywordPairs.get(0).KEYWORD().getText())
+                    && "instanceVariableNames:".equals(keywordPairs.get(1).KEYWORD().getText())
+                    && ("#" + className()).equals(keywordPairs.get(0).binarySend().getText().trim()))
+                return keywordSend;
+        }
+        for (int i = 0; i < tree.getChildCount(); i++) {
+            SmalltalkParser.KeywordSendContext definition = classDefinition(tree.getChild(i));
+            if (definition != null)
+                return definition;
+        }
+        return null;
+    }
+
     private String superclassName() {
         return "st/redline/core/PrimObject";
     }
@@ -113,6 +176,17 @@ public class SmalltalkGeneratingVisitor extends SmalltalkBaseVisitor<Void> imple
         mv.visitLdcInsn(literal);
     }
 
+    public void pushSelector(MethodVisitor mv, String selector) {
+        mv.visitInvokeDynamicInsn("selector", "()Lst/redline/core/Selector;", SELECTOR_BOOTSTRAP, selector);
+    }
+
+    public void pushLiteralObject(MethodVisitor mv, String kind, Object value, int line) {
+        // The site links to the literal's object on first evaluation, see LiteralSite.
+        visitLine(mv, line);
+        pushReceiver(mv);
+        mv.visitInvokeDynamicInsn(kind, "(Lst/redline/core/PrimObject;)Lst/redline/core/PrimObject;", LITERAL_BOOTSTRAP, value);
+    }
+
     public void pushDuplicate(MethodVisitor mv) {
         mv.visitInsn(DUP);
     }
@@ -138,16 +212,30 @@ public class SmalltalkGeneratingVisitor extends SmalltalkBaseVisitor<Void> imple
         mv.visitInsn(ACONST_NULL);
     }
 
-    public void pushTemporary(MethodVisitor mv, int index) {
-        pushContext(mv);
-        pushNumber(mv, index);
-        mv.visitMethodInsn(INVOKEVIRTUAL, contextName(), "temporaryAt", "(I)Lst/redline/core/PrimObject;", false);
+    public void pushLocal(MethodVisitor mv, int slot) {
+        mv.visitVarInsn(ALOAD, slot);
     }
 
-    public void storeTemporary(MethodVisitor mv, int index) {
-        pushNumber(mv, index);
-        pushContext(mv);
-        mv.visitMethodInsn(INVOKESTATIC, contextName(), "temporaryPutAt", "(Lst/redline/core/PrimObject;IL" + contextName() + ";)V", false);
+    public void storeLocal(MethodVisitor mv, int slot) {
+        mv.visitVarInsn(ASTORE, slot);
+    }
+
+    public void pushNewCell(MethodVisitor mv) {
+        // Wraps the value on the stack in a new PrimCell.
+        mv.visitTypeInsn(NEW, CELL);
+        mv.visitInsn(DUP_X1);
+        mv.visitInsn(SWAP);
+        mv.visitMethodInsn(INVOKESPECIAL, CELL, "<init>", "(Lst/redline/core/PrimObject;)V", false);
+    }
+
+    public void pushCellValue(MethodVisitor mv) {
+        mv.visitFieldInsn(GETFIELD, CELL, "value", "Lst/redline/core/PrimObject;");
+    }
+
+    public void storeCellValue(MethodVisitor mv) {
+        // The cell is on top of the value to store.
+        mv.visitInsn(SWAP);
+        mv.visitFieldInsn(PUTFIELD, CELL, "value", "Lst/redline/core/PrimObject;");
     }
 
     public void pushArgument(MethodVisitor mv, int index) {
@@ -157,30 +245,56 @@ public class SmalltalkGeneratingVisitor extends SmalltalkBaseVisitor<Void> imple
     }
 
     public void pushReference(MethodVisitor mv, String name) {
+        // The site caches the resolved object until its name is bound again, see ReferenceSite.
         pushReceiver(mv);
-        pushLiteral(mv, name);
-        mv.visitMethodInsn(INVOKEVIRTUAL, superclassName(), "reference", "(Ljava/lang/String;)Lst/redline/core/PrimObject;", false);
+        mv.visitInvokeDynamicInsn("reference", "(Lst/redline/core/PrimObject;)Lst/redline/core/PrimObject;", REFERENCE_BOOTSTRAP, name);
     }
 
     public void pushNil(MethodVisitor mv) {
-        pushReceiver(mv);
-        mv.visitMethodInsn(INVOKEVIRTUAL, superclassName(), "referenceNil", "()Lst/redline/core/PrimObject;", false);
+        mv.visitInvokeDynamicInsn("nil", "()Lst/redline/core/PrimObject;", CONSTANT_BOOTSTRAP);
     }
 
     public void pushTrue(MethodVisitor mv) {
-        pushReceiver(mv);
-        mv.visitMethodInsn(INVOKEVIRTUAL, superclassName(), "referenceTrue", "()Lst/redline/core/PrimObject;", false);
+        mv.visitInvokeDynamicInsn("true", "()Lst/redline/core/PrimObject;", CONSTANT_BOOTSTRAP);
     }
 
     public void pushFalse(MethodVisitor mv) {
+        mv.visitInvokeDynamicInsn("false", "()Lst/redline/core/PrimObject;", CONSTANT_BOOTSTRAP);
+    }
+
+    public void jumpUnlessSmallInteger(MethodVisitor mv, Label label) {
+        mv.visitTypeInsn(INSTANCEOF, SMALL_INTEGER);
+        mv.visitJumpInsn(IFEQ, label);
+    }
+
+    public void pushLongValue(MethodVisitor mv) {
+        // The value of the SmallInteger on the stack.
+        mv.visitTypeInsn(CHECKCAST, SMALL_INTEGER);
+        mv.visitMethodInsn(INVOKEVIRTUAL, SMALL_INTEGER, "value", "()J", false);
+    }
+
+    public void pushInteger(MethodVisitor mv, int slot) {
+        // The long held in the slot as a SmallInteger.
         pushReceiver(mv);
-        mv.visitMethodInsn(INVOKEVIRTUAL, superclassName(), "referenceFalse", "()Lst/redline/core/PrimObject;", false);
+        mv.visitVarInsn(LLOAD, slot);
+        mv.visitMethodInsn(INVOKEVIRTUAL, superclassName(), "smalltalkInteger", "(J)Lst/redline/core/PrimObject;", false);
     }
 
     public void invokePerform(MethodVisitor mv, String selector, int argumentCount, boolean sendToSuper) {
-        pushLiteral(mv, selector);
-        String methodName = (sendToSuper) ? "superPerform" : "perform";
-        mv.visitMethodInsn(INVOKEVIRTUAL, "st/redline/core/PrimObject", methodName, SIGNATURES[argumentCount], false);
+        if (sendToSuper) {
+            // The context tells the call site which class the sending method was found in.
+            pushContext(mv);
+            mv.visitInvokeDynamicInsn("superPerform", sendSignature(argumentCount, "Lst/redline/core/PrimContext;"), SEND_SUPER_BOOTSTRAP, selector);
+        } else
+            mv.visitInvokeDynamicInsn("perform", sendSignature(argumentCount, ""), SEND_BOOTSTRAP, selector);
+    }
+
+    private String sendSignature(int argumentCount, String trailing) {
+        // receiver followed by the arguments, the selector is bound to the call site by the bootstrap.
+        StringBuilder signature = new StringBuilder("(");
+        for (int i = 0; i <= argumentCount; i++)
+            signature.append("Lst/redline/core/PrimObject;");
+        return signature.append(trailing).append(")Lst/redline/core/PrimObject;").toString();
     }
 
     public void visitLine(MethodVisitor mv, int line) {
@@ -198,28 +312,32 @@ public class SmalltalkGeneratingVisitor extends SmalltalkBaseVisitor<Void> imple
             case 4: mv.visitInsn(ICONST_4); break;
             case 5: mv.visitInsn(ICONST_5); break;
             default:
-                if (value > 5 && value < 128)
+                if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
                     mv.visitIntInsn(BIPUSH, value);
-                else // SIPUSH not supported yet.
-                    throw new IllegalStateException("push of integer value " + value + " not yet supported.");
+                else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+                    mv.visitIntInsn(SIPUSH, value);
+                else
+                    mv.visitLdcInsn(value);
         }
     }
 
-    public void pushNewObject(MethodVisitor mv, String type, String value, int line) {
-        visitLine(mv, line);
-        pushReceiver(mv);
-        pushLiteral(mv, value);
-        mv.visitMethodInsn(INVOKEVIRTUAL, "st/redline/core/PrimObject", type, "(Ljava/lang/Object;)Lst/redline/core/PrimObject;", false);
+    private void pushNewBlock(MethodVisitor mv, String className, String name, String sig, int line) {
+        pushNewLambda(mv, className, name, sig, line);
+        wrapNewBlock(mv);
     }
 
-    private void pushNewBlock(MethodVisitor mv, String className, String name, String sig, int line, boolean answerBlock, String answerBlockClassName) {
-        pushNewLambda(mv, className, name, sig, line);
-        if (!answerBlock) {
-            mv.visitMethodInsn(INVOKEVIRTUAL, "st/redline/core/PrimObject", "smalltalkBlock", "(Ljava/lang/Object;)Lst/redline/core/PrimObject;", false);
-        } else {
-            pushLiteral(mv, answerBlockClassName);
-            mv.visitMethodInsn(INVOKEVIRTUAL, "st/redline/core/PrimObject", "smalltalkBlockAnswer", "(Ljava/lang/Object;Ljava/lang/String;)Lst/redline/core/PrimObject;", false);
-        }
+    private void wrapNewBlock(MethodVisitor mv) {
+        mv.visitMethodInsn(INVOKEVIRTUAL, "st/redline/core/PrimObject", "smalltalkBlock", "(Ljava/lang/Object;)Lst/redline/core/PrimObject;", false);
+    }
+
+    public void throwBlockAnswer(MethodVisitor mv) {
+        // The answer and the home token are on the stack.
+        mv.visitTypeInsn(NEW, BLOCK_ANSWER);
+        mv.visitInsn(DUP_X2);
+        mv.visitInsn(DUP_X2);
+        mv.visitInsn(POP);
+        mv.visitMethodInsn(INVOKESPECIAL, BLOCK_ANSWER, "<init>", "(Lst/redline/core/PrimObject;Lst/redline/core/PrimCell;)V", false);
+        mv.visitInsn(ATHROW);
     }
 
     private void pushNewMethod(MethodVisitor mv, String className, String name, String sig, int line) {
@@ -227,11 +345,30 @@ public class SmalltalkGeneratingVisitor extends SmalltalkBaseVisitor<Void> imple
         mv.visitMethodInsn(INVOKEVIRTUAL, "st/redline/core/PrimObject", "smalltalkMethod", "(Ljava/lang/Object;)Lst/redline/core/PrimObject;", false);
     }
 
+    private void pushNewDirectMethod(MethodVisitor mv, String className, String name, String sig, String directSig, int line) {
+        pushNewLambda(mv, className,name, sig, line);
+        mv.visitLdcInsn(new Handle(Opcodes.H_INVOKESTATIC, className, name, directSig, false));
+        mv.visitMethodInsn(INVOKEVIRTUAL, "st/redline/core/PrimObject", "smalltalkMethod", "(Ljava/lang/Object;Ljava/lang/Object;)Lst/redline/core/PrimObject;", false);
+    }
+
+    private static String directSignature(int argumentCount) {
+        // thiz and receiver followed by the arguments, passed as parameters rather than in a PrimContext.
+        StringBuilder signature = new StringBuilder("(Lst/redline/core/PrimObject;Lst/redline/core/PrimObject;");
+        for (int i = 0; i < argumentCount; i++)
+            signature.append("Lst/redline/core/PrimObject;");
+        return signature.append(")Lst/redline/core/PrimObject;").toString();
+    }
+
     private void pushNewLambda(MethodVisitor mv, String className, String name, String sig, int line) {
         visitLine(mv, line);
         pushReceiver(mv);
-        mv.visitInvokeDynamicInsn("apply", "()Lst/redline/core/LambdaBlock;",
-                new Handle(Opcodes.H_INVOKESTATIC, "java/lang/invoke/LambdaMetafactory", "metafactory", "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;"), new Object[]{Type.getType(sig), new Handle(Opcodes.H_INVOKESTATIC, className, name, sig), Type.getType(sig)});
+        invokeNewLambda(mv, className, name, sig, "");
+    }
+
+    private void invokeNewLambda(MethodVisitor mv, String className, String name, String sig, String captured) {
+        // The captured values on the stack become the leading parameters of the implementing method.
+        mv.visitInvokeDynamicInsn("apply", "(" + captured + ")Lst/redline/core/LambdaBlock;",
+                new Handle(Opcodes.H_INVOKESTATIC, "java/lang/invoke/LambdaMetafactory", "metafactory", "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;", false), new Object[]{Type.getType(sig), new Handle(Opcodes.H_INVOKESTATIC, className, name, "(" + captured + sig.substring(1), false), Type.getType(sig)});
     }
 
     // ------------------------------
@@ -248,9 +385,17 @@ public class SmalltalkGeneratingVisitor extends SmalltalkBaseVisitor<Void> imple
         protected int blockNumber = 0;
         private boolean referencedJVM = false;
         private boolean sendToSuper = false;
-        private List<BlockAnswerRecord> tryCatchRecords;
-        private Label tryStartLabel;
-        private Label tryEndLabel;
+        protected boolean contextFree = false;
+        protected int argumentCount = 0;
+        protected List<String> captured = Collections.emptyList();
+        protected int cellsSlot = -1;
+        protected int nextLocal = 3;
+        private Set<String> escaping = Collections.emptySet();
+        private Map<String, Integer> slots = new HashMap<String, Integer>();
+        protected boolean home = true;
+        protected boolean instanceVariables = false;
+        private Label homeStart;
+        private Label homeHandler;
 
         public ClassGeneratorVisitor() {
             this(new ClassWriter(ClassWriter.COMPUTE_FRAMES));
@@ -278,6 +423,7 @@ public class SmalltalkGeneratingVisitor extends SmalltalkBaseVisitor<Void> imple
 
         private void closeSendMessagesMethod() {
             mv.visitInsn(ARETURN);
+            closeHome();
             mv.visitMaxs(0, 0);
             mv.visitEnd();
         }
@@ -368,6 +514,10 @@ public class SmalltalkGeneratingVisitor extends SmalltalkBaseVisitor<Void> imple
 
         public Void visitSequence(SmalltalkParser.SequenceContext ctx) {
             log("visitSequence");
+            escaping = escapingNames(ctx);
+            moveEscapingArgumentsToCells();
+            captureReceiver();
+            openHome();
             SmalltalkParser.TempsContext temps = ctx.temps();
             if (temps != null)
                 temps.accept(currentVisitor());
@@ -380,27 +530,353 @@ public class SmalltalkGeneratingVisitor extends SmalltalkBaseVisitor<Void> imple
         public Void visitTemps(@NotNull SmalltalkParser.TempsContext ctx) {
             initializeTemporaryVariableMap();
             addToTemporaryVariableMap(ctx.IDENTIFIER());
-            addTemporariesToContext();
+            addTemporariesToLocals(ctx.IDENTIFIER());
             return null;
         }
 
-        private void addTemporariesToContext() {
-            visitLine(mv, lineNumberOfFirstTemporary());
-            pushContext(mv);
-            pushNumber(mv, temporaries.size());
-            mv.visitMethodInsn(INVOKEVIRTUAL, contextName(), "initTemporaries", "(I)V", false);
+        private void addTemporariesToLocals(List<TerminalNode> nodes) {
+            // Temporaries live in JVM locals, or in a PrimCell held by the local when a block captures them.
+            visitLine(mv, nodes.get(0).getSymbol().getLine());
+            for (TerminalNode node : nodes) {
+                String name = node.getText();
+                int slot = nextLocal++;
+                slots.put(name, slot);
+                pushNil(mv);
+                if (escaping.contains(name))
+                    pushNewCell(mv);
+                storeLocal(mv, slot);
+            }
         }
 
-        private int lineNumberOfFirstTemporary() {
-            return temporaries.entrySet().iterator().next().getValue().getLine();
+        private void moveEscapingArgumentsToCells() {
+            if (arguments == null)
+                return;
+            for (String name : arguments.keySet())
+                if (escaping.contains(name)) {
+                    int slot = nextLocal++;
+                    loadArgument(indexOfArgument(name));
+                    pushNewCell(mv);
+                    storeLocal(mv, slot);
+                    slots.put(name, slot);
+                }
         }
 
-        private boolean isTemporary(String key) {
-            return temporaries != null && temporaries.containsKey(key);
+        private void captureReceiver() {
+            // A method whose blocks use instance variables holds its receiver in a cell they capture.
+            if (escaping.contains(SELF))
+                bindReceiverCell();
+        }
+
+        private void bindReceiverCell() {
+            int slot = nextLocal++;
+            pushReceiver(mv);
+            pushNewCell(mv);
+            storeLocal(mv, slot);
+            slots.put(SELF, slot);
+        }
+
+        private void openHome() {
+            // A home whose blocks answer with ^ allocates the token they unwind to, and catches their answers.
+            if (!escaping.contains(HOME))
+                return;
+            int slot = nextLocal++;
+            pushNull(mv);
+            pushNewCell(mv);
+            storeLocal(mv, slot);
+            slots.put(HOME, slot);
+            homeStart = new Label();
+            homeHandler = new Label();
+            mv.visitLabel(homeStart);
+        }
+
+        protected void closeHome() {
+            if (homeHandler == null)
+                return;
+            log("closeHome");
+            // Registered last so the handlers of inlined conditionals nested in the body are tried first.
+            mv.visitTryCatchBlock(homeStart, homeHandler, homeHandler, BLOCK_ANSWER);
+            mv.visitLabel(homeHandler);
+            pushLocal(mv, slots.get(HOME));
+            mv.visitMethodInsn(INVOKEVIRTUAL, BLOCK_ANSWER, "answerFor", "(Lst/redline/core/PrimCell;)Lst/redline/core/PrimObject;", false);
+            mv.visitInsn(ARETURN);
+        }
+
+        private void answer() {
+            // Outside its home a ^ unwinds to the home, which is always captured by such a block.
+            if (isCaptured(HOME)) {
+                pushCapturedCell(HOME);
+                throwBlockAnswer(mv);
+            } else
+                mv.visitInsn(ARETURN);
+        }
+
+        private void loadArgument(int index) {
+            if (contextFree)
+                pushLocal(mv, 2 + index);  // After thiz and receiver, as laid out by directSignature.
+            else
+                pushArgument(mv, index);
+        }
+
+        private boolean isLocal(String key) {
+            return slots.containsKey(key);
+        }
+
+        private boolean isCaptured(String key) {
+            return captured.contains(key);
+        }
+
+        private void loadLocal(String key) {
+            pushLocal(mv, slots.get(key));
+            if (escaping.contains(key))
+                pushCellValue(mv);
+        }
+
+        private void saveLocal(String key) {
+            if (escaping.contains(key)) {
+                pushLocal(mv, slots.get(key));
+                storeCellValue(mv);
+            } else
+                storeLocal(mv, slots.get(key));
+        }
+
+        private void pushCapturedCell(String key) {
+            pushLocal(mv, cellsSlot);
+            pushNumber(mv, captured.indexOf(key));
+            mv.visitInsn(AALOAD);
+        }
+
+        protected void pushCell(String key) {
+            // The cell of a variable of this scope that a nested block captures.
+            if (isLocal(key))
+                pushLocal(mv, slots.get(key));
+            else
+                pushCapturedCell(key);
+        }
+
+        private void loadCaptured(String key) {
+            pushCapturedCell(key);
+            pushCellValue(mv);
+        }
+
+        private void saveCaptured(String key) {
+            pushCapturedCell(key);
+            storeCellValue(mv);
+        }
+
+        private Set<String> escapingNames(SmalltalkParser.SequenceContext ctx) {
+            // The temporaries and arguments of this scope referenced from the blocks nested in it.
+            Set<String> names = new HashSet<String>();
+            collectFreeNames(ctx, Collections.<String>emptySet(), names, false);
+            Set<String> own = new HashSet<String>();
+            if (ctx.temps() != null)
+                for (TerminalNode node : ctx.temps().IDENTIFIER())
+                    own.add(node.getText());
+            if (arguments != null)
+                own.addAll(arguments.keySet());
+            if (home)
+                own.add(HOME);
+            if (home && instanceVariables && usesInstanceVariables(names, own)) {
+                own.add(SELF);
+                names.add(SELF);
+            }
+            names.retainAll(own);
+            return names;
         }
 
-        private int indexOfTemporary(String key) {
-            return temporaries.get(key).getIndex();
+        protected List<String> capturedBy(SmalltalkParser.BlockContext ctx) {
+            // The variables of this and the enclosing scopes that a nested block, or any block inside it, refers to.
+            Set<String> names = closureNames(ctx);
+            List<String> cells = new ArrayList<String>();
+            for (String name : names)
+                if (isLocal(name) || isCaptured(name))
+                    cells.add(name);
+            if (usesInstanceVariables(names, Collections.<String>emptySet()) && (isLocal(SELF) || isCaptured(SELF)))
+                cells.add(SELF);
+            return cells;
+        }
+
+        private boolean usesInstanceVariables(Collection<String> names, Set<String> declared) {
+            for (String name : names)
+                if (!declared.contains(name) && isInstanceVariable(name))
+                    return true;
+            return false;
+        }
+
+        private boolean isInstanceVariable(String name) {
+            return instanceVariables && instanceVariableNames().contains(name)
+                    && !isLocal(name) && !isArgument(name) && !isCaptured(name);
+        }
+
+        private boolean isUndeclared(String name) {
+            // In the instance methods of the class, a name beginning in lower case must be a variable.
+            return instanceVariables && Character.isLowerCase(name.charAt(0));
+        }
+
+        private RuntimeException undeclared(TerminalNode identifier) {
+            return new RuntimeException("Variable '" + identifier.getText() + "' on line " + identifier.getSymbol().getLine()
+                    + " of '" + className() + "' is not declared.");
+        }
+
+        private void pushInstance() {
+            // The receiver of the method as an instance of the class's instance class, see InstanceClassGenerator.
+            if (isCaptured(SELF))
+                loadCaptured(SELF);
+            else
+                pushReceiver(mv);
+            mv.visitTypeInsn(CHECKCAST, instanceClassName());
+        }
+
+        private void loadInstanceVariable(String name) {
+            pushInstance();
+            mv.visitFieldInsn(GETFIELD, instanceClassName(), name, OBJECT);
+        }
+
+        private void saveInstanceVariable(String name) {
+            pushInstance();
+            mv.visitInsn(SWAP);
+            mv.visitFieldInsn(PUTFIELD, instanceClassName(), name, OBJECT);
+        }
+
+        private Set<String> closureNames(SmalltalkParser.BlockContext ctx) {
+            // The free names of a block compiled as a closure, even one that is otherwise inlined where it is written.
+            Set<String> names = new LinkedHashSet<String>();
+            Set<String> declared = declaredBy(ctx, Collections.<String>emptySet());
+            for (int i = 0; i < ctx.getChildCount(); i++)
+                collectFreeNames(ctx.getChild(i), declared, names, true);
+            return names;
+        }
+
+        private Set<String> declaredBy(SmalltalkParser.BlockContext block, Set<String> enclosing) {
+            Set<String> declared = new HashSet<String>(enclosing);
+            if (block.blockParamList() != null)
+                for (TerminalNode node : block.blockParamList().BLOCK_PARAM())
+                    declared.add(node.getText().substring(1));
+            if (block.sequence() != null && block.sequence().temps() != null)
+                for (TerminalNode node : block.sequence().temps().IDENTIFIER())
+                    declared.add(node.getText());
+            return declared;
+        }
+
+        private void collectFreeNames(ParseTree tree, Set<String> declared, Set<String> names, boolean inBlock) {
+            if (tree instanceof SmalltalkParser.BlockContext) {
+                SmalltalkParser.BlockContext block = (SmalltalkParser.BlockContext) tree;
+                if (isMethodBlock(block))
+                    return;
+                // An inlined block is part of the scope it is written in.
+                declared = declaredBy(block, declared);
+                if (!isInlined(block))
+                    inBlock = true;
+            } else if (tree instanceof SmalltalkParser.VariableContext) {
+                if (inBlock && !declared.contains(tree.getText()))
+                    names.add(tree.getText());
+                return;
+            } else if (tree instanceof SmalltalkParser.AnswerContext && inBlock)
+                names.add(HOME);
+            for (int i = 0; i < tree.getChildCount(); i++)
+                collectFreeNames(tree.getChild(i), declared, names, inBlock);
+        }
+
+        private boolean isMethodBlock(SmalltalkParser.BlockContext block) {
+            // A block passed as the withMethod: argument, which is a home of its own and captures nothing.
+            ParseTree parent = block.getParent();
+            while (parent != null && !(parent instanceof SmalltalkParser.KeywordPairContext) && !(parent instanceof SmalltalkParser.ExpressionContext))
+                parent = parent.getParent();
+            return parent instanceof SmalltalkParser.KeywordPairContext
+                    && "withMethod:".equals(((SmalltalkParser.KeywordPairContext) parent).KEYWORD().getText());
+        }
+
+        private boolean isInstanceMethodBlock(SmalltalkParser.BlockContext block) {
+            // A method of the instances of the class this source defines, added by a send to the class itself.
+            ParseTree parent = block.getParent();
+            while (!(parent instanceof SmalltalkParser.KeywordPairContext))
+                parent = parent.getParent();
+            if (!(parent.getParent().getParent() instanceof SmalltalkParser.KeywordSendContext))
+                return false;
+            SmalltalkParser.BinarySendContext receiver = ((SmalltalkParser.KeywordSendContext) parent.getParent().getParent()).binarySend();
+            return receiver.binaryTail() == null && receiver.unarySend().unaryTail() == null
+                    && className().equals(receiver.unarySend().operand().getText());
+        }
+
+        private boolean isInlined(SmalltalkParser.BlockContext block) {
+            ParseTree parent = block.getParent();
+            while (parent != null && !(parent instanceof SmalltalkParser.KeywordPairContext)
+                    && !(parent instanceof SmalltalkParser.KeywordSendContext) && !(parent instanceof SmalltalkParser.ExpressionContext))
+                parent = parent.getParent();
+            if (parent instanceof SmalltalkParser.KeywordSendContext) {
+                SmalltalkParser.KeywordSendContext keywordSend = (SmalltalkParser.KeywordSendContext) parent;
+                return literalBlock(keywordSend.binarySend()) == block && isInlined(keywordSend.keywordMessage()) && isLoop(keywordSend.keywordMessage());
+            }
+            if (!(parent instanceof SmalltalkParser.KeywordPairContext))
+                return false;
+            SmalltalkParser.KeywordPairContext keywordPair = (SmalltalkParser.KeywordPairContext) parent;
+            return literalBlock(keywordPair.binarySend()) == block && isInlined((SmalltalkParser.KeywordMessageContext) keywordPair.getParent());
+        }
+
+        private boolean isInlined(SmalltalkParser.KeywordMessageContext ctx) {
+            // A conditional or loop sent with literal blocks, taking the arguments the selector supplies them with.
+            if (!(ctx.getParent() instanceof SmalltalkParser.KeywordSendContext) || !INLINED_SELECTORS.contains(selectorOf(ctx)))
+                return false;
+            for (SmalltalkParser.KeywordPairContext keywordPair : ctx.keywordPair()) {
+                int argumentCount = inlinedArgumentCount(keywordPair.KEYWORD().getText());
+                if (argumentCount >= 0 && !isLiteralBlock(literalBlock(keywordPair.binarySend()), argumentCount))
+                    return false;
+            }
+            if (isLoop(ctx))
+                return isLiteralBlock(literalBlock(((SmalltalkParser.KeywordSendContext) ctx.getParent()).binarySend()), 0);
+            return true;
+        }
+
+        private boolean isLoop(SmalltalkParser.KeywordMessageContext ctx) {
+            // The loops whose receiver is a literal block too.
+            String selector = selectorOf(ctx);
+            return "whileTrue:".equals(selector) || "whileFalse:".equals(selector);
+        }
+
+        private int inlinedArgumentCount(String keyword) {
+            // The arguments the block of an inlined keyword takes, or -1 when the argument is not a block.
+            if ("to:".equals(keyword) || "by:".equals(keyword))
+                return -1;
+            return "do:".equals(keyword) ? 1 : 0;
+        }
+
+        private boolean isLiteralBlock(SmalltalkParser.BlockContext block, int argumentCount) {
+            if (block == null || block.sequence() == null)
+                return false;
+            return argumentCount == (block.blockParamList() == null ? 0 : block.blockParamList().BLOCK_PARAM().size());
+        }
+
+        private SmalltalkParser.BlockContext literalBlock(SmalltalkParser.BinarySendContext binarySend) {
+            if (binarySend == null || binarySend.binaryTail() != null || binarySend.unarySend().unaryTail() != null)
+                return null;
+            SmalltalkParser.LiteralContext literal = binarySend.unarySend().operand().literal();
+            if (literal == null || literal.runtimeLiteral() == null)
+                return null;
+            return literal.runtimeLiteral().block();
+        }
+
+        private String selectorOf(SmalltalkParser.KeywordMessageContext ctx) {
+            StringBuilder selector = new StringBuilder();
+            for (SmalltalkParser.KeywordPairContext keywordPair : ctx.keywordPair())
+                selector.append(keywordPair.KEYWORD().getText());
+            return selector.toString();
+        }
+
+        protected boolean needsContext(ParseTree tree) {
+            // Super sends and JVM code use the context. Nested blocks are compiled with contexts of their own.
+            if (tree == null || tree instanceof SmalltalkParser.BlockContext && !isInlined((SmalltalkParser.BlockContext) tree))
+                return false;
+            if (tree instanceof SmalltalkParser.PseudoVariableContext && "super".equals(tree.getText()))
+                return true;
+            if (tree instanceof SmalltalkParser.ReferenceContext && "JVM".equals(tree.getText()))
+                return true;
+            for (int i = 0; i < tree.getChildCount(); i++)
+                if (needsContext(tree.getChild(i)))
+                    return true;
+            return false;
+        }
+
+        private boolean isTemporary(String key) {
+            return temporaries != null && temporaries.containsKey(key);
         }
 
         private void addToTemporaryVariableMap(List<TerminalNode> nodes) {
@@ -495,7 +971,7 @@ public class SmalltalkGeneratingVisitor extends SmalltalkBaseVisitor<Void> imple
             visitLine(mv, answer.CARROT().getSymbol().getLine());
             SmalltalkParser.ExpressionContext expression = answer.expression();
             expression.accept(currentVisitor());
-            mv.visitInsn(ARETURN);
+            answer();
             return null;
         }
 
@@ -505,7 +981,7 @@ public class SmalltalkGeneratingVisitor extends SmalltalkBaseVisitor<Void> imple
             visitLine(mv, carrot.getSymbol().getLine());
             SmalltalkParser.ExpressionContext expression = ctx.expression();
             expression.accept(currentVisitor());
-            mv.visitInsn(ARETURN);
+            answer();
             return null;
         }
 
@@ -563,8 +1039,7 @@ public class SmalltalkGeneratingVisitor extends SmalltalkBaseVisitor<Void> imple
             log("visitUnarySelector " + ctx.IDENTIFIER().getSymbol().getText());
             TerminalNode selectorNode = ctx.IDENTIFIER();
             visitLine(mv, selectorNode.getSymbol().getLine());
-            invokePerform(mv, selectorNode.getSymbol().getText(), 0, sendToSuper);
-            sendToSuper = false;
+            invokePerform(mv, selectorNode.getSymbol().getText(), 0, takeSendToSuper());
             return null;
         }
 
@@ -588,6 +1063,10 @@ public class SmalltalkGeneratingVisitor extends SmalltalkBaseVisitor<Void> imple
 
         public Void visitKeywordSend(@NotNull SmalltalkParser.KeywordSendContext ctx) {
             log("visitKeywordSend");
+            if (isInlined(ctx.keywordMessage()) && isLoop(ctx.keywordMessage())) {
+                inlineWhile(ctx);
+                return null;
+            }
             ctx.binarySend().accept(currentVisitor());
             if (referencedJVM)
                 pushCurrentVisitor(new JVMGeneratorVisitor(cw, mv));
@@ -620,10 +1099,17 @@ public class SmalltalkGeneratingVisitor extends SmalltalkBaseVisitor<Void> imple
             TerminalNode identifierNode = variable.IDENTIFIER();
             String identifier = identifierNode.getSymbol().getText();
             visitLine(mv, identifierNode.getSymbol().getLine());
-            if (!isTemporary(identifier))
-                throw new RuntimeException("visitAssignment temporary expected.");
             pushDuplicate(mv);
-            storeTemporary(mv, indexOfTemporary(identifier));
+            if (isTemporary(identifier))
+                saveLocal(identifier);
+            else if (isCaptured(identifier))
+                saveCaptured(identifier);
+            else if (isInstanceVariable(identifier))
+                saveInstanceVariable(identifier);
+            else if (isUndeclared(identifier))
+                throw undeclared(identifierNode);
+            else
+                throw new RuntimeException("visitAssignment temporary expected.");
             return null;
         }
 
@@ -652,6 +1138,7 @@ public class SmalltalkGeneratingVisitor extends SmalltalkBaseVisitor<Void> imple
         public Void visitBinaryMessage(@NotNull SmalltalkParser.BinaryMessageContext ctx) {
             log("visitBinaryMessage " + ctx.BINARY_SELECTOR().getSymbol().getText());
             TerminalNode binarySelector = ctx.BINARY_SELECTOR();
+            boolean toSuper = takeSendToSuper();
             SmalltalkParser.UnarySendContext unarySend = ctx.unarySend();
             if (unarySend != null)
                 unarySend.accept(currentVisitor());
@@ -659,52 +1146,612 @@ public class SmalltalkGeneratingVisitor extends SmalltalkBaseVisitor<Void> imple
             if (operand != null)
                 operand.accept(currentVisitor());
             visitLine(mv, binarySelector.getSymbol().getLine());
-            invokePerform(mv, binarySelector.getSymbol().getText(), 1, sendToSuper);
-            sendToSuper = false;
+            String selector = binarySelector.getSymbol().getText();
+            if (!toSuper && SPECIAL_SELECTORS.contains(selector))
+                sendSpecialMessage(selector);
+            else
+                invokePerform(mv, selector, 1, toSuper);
             return null;
         }
 
         public Void visitKeywordMessage(@NotNull SmalltalkParser.KeywordMessageContext ctx) {
             log("visitKeywordMessage");
+            boolean toSuper = takeSendToSuper();
+            if (!toSuper && isInlined(ctx))
+                inlineKeywordMessage(ctx);
+            else if (!toSuper && SPECIAL_SELECTORS.contains(selectorOf(ctx))) {
+                ctx.keywordPair().get(0).binarySend().accept(currentVisitor());
+                visitLine(mv, ctx.keywordPair().get(0).KEYWORD().getSymbol().getLine());
+                sendSpecialMessage(selectorOf(ctx));
+            } else
+                sendKeywordMessage(ctx, toSuper, null);
+            return null;
+        }
+
+        private void sendKeywordMessage(SmalltalkParser.KeywordMessageContext ctx, boolean toSuper, int[] evaluated) {
+            // Arguments already evaluated into locals, where evaluated gives a slot, are not evaluated again.
             initializeKeyword();
-            initializeTryCatch();
-            for (SmalltalkParser.KeywordPairContext keywordPair : ctx.keywordPair())
-                keywordPair.accept(currentVisitor());
-            visitLine(mv, ctx.keywordPair().get(0).KEYWORD().getSymbol().getLine());
+            List<SmalltalkParser.KeywordPairContext> keywordPairs = ctx.keywordPair();
+            for (int i = 0; i < keywordPairs.size(); i++)
+                if (evaluated != null && evaluated[i] >= 0) {
+                    addToKeyword(keywordPairs.get(i).KEYWORD().getText());
+                    pushLocal(mv, evaluated[i]);
+                } else
+                    keywordPairs.get(i).accept(currentVisitor());
+            visitLine(mv, keywordPairs.get(0).KEYWORD().getSymbol().getLine());
             String keyword = removeKeyword();
-            setupTryBlock();
-            invokePerform(mv, keyword, countOf(keyword, ':'), sendToSuper);
-            setupCatchBlock();
-            sendToSuper = false;
-            return null;
+            invokePerform(mv, keyword, countOf(keyword, ':'), toSuper);
+        }
+
+        private void sendSpecialMessage(String selector) {
+            // The receiver and argument are on the stack. When both are SmallIntegers the operation is done here on
+            // their values, as the special selectors of the Blue Book are, and otherwise, or when the answer would
+            // not be a SmallInteger, the message is sent for real. The locals are free again once it is done.
+            int scratch = nextLocal;
+            int receiver = nextLocal++;
+            int argument = nextLocal++;
+            int a = nextLocal;
+            int b = nextLocal + 2;
+            int result = nextLocal + 4;
+            nextLocal += 6;
+            Label fallback = new Label();
+            Label end = new Label();
+            storeLocal(mv, argument);
+            storeLocal(mv, receiver);
+            pushLocal(mv, receiver);
+            jumpUnlessSmallInteger(mv, fallback);
+            pushLocal(mv, argument);
+            jumpUnlessSmallInteger(mv, fallback);
+            pushLocal(mv, receiver);
+            pushLongValue(mv);
+            mv.visitVarInsn(LSTORE, a);
+            pushLocal(mv, argument);
+            pushLongValue(mv);
+            mv.visitVarInsn(LSTORE, b);
+            Integer comparison = comparisonOpcode(selector);
+            if (comparison != null) {
+                Label isTrue = new Label();
+                pushLongs(a, b);
+                mv.visitInsn(LCMP);
+                mv.visitJumpInsn(comparison, isTrue);
+                pushFalse(mv);
+                mv.visitJumpInsn(GOTO, end);
+                mv.visitLabel(isTrue);
+                pushTrue(mv);
+            } else {
+                computeSpecialMessage(selector, a, b, result, fallback);
+                pushInteger(mv, result);
+            }
+            mv.visitJumpInsn(GOTO, end);
+            mv.visitLabel(fallback);
+            pushLocal(mv, receiver);
+            pushLocal(mv, argument);
+            invokePerform(mv, selector, 1, false);
+            mv.visitLabel(end);
+            nextLocal = scratch;
+        }
+
+        private Integer comparisonOpcode(String selector) {
+            // The jump taken on the LCMP of the two values when the comparison answers true.
+            switch (selector) {
+                case "<": return IFLT;
+                case ">": return IFGT;
+                case "<=": return IFLE;
+                case ">=": return IFGE;
+                case "=": return IFEQ;
+                case "~=": return IFNE;
+                default: return null;
+            }
         }
 
-        private void initializeTryCatch() {
-            tryCatchRecords = new ArrayList<>();
-            tryStartLabel = new Label();
-            tryEndLabel = new Label();
+        private void computeSpecialMessage(String selector, int a, int b, int result, Label fallback) {
+            // Stores the answer in result, jumping to fallback where Math.addExact and its kind would throw, or
+            // where the answer is not an integer.
+            switch (selector) {
+                case "+":
+                    // Overflow when the result differs in sign from both operands.
+                    pushLongs(a, b);
+                    mv.visitInsn(LADD);
+                    mv.visitVarInsn(LSTORE, result);
+                    jumpIfNegative(a, result, b, result, fallback);
+                    break;
+                case "-":
+                    // Overflow when the operands differ in sign and the result differs in sign from the first.
+                    pushLongs(a, b);
+                    mv.visitInsn(LSUB);
+                    mv.visitVarInsn(LSTORE, result);
+                    jumpIfNegative(a, b, a, result, fallback);
+                    break;
+                case "*":
+                    // Overflow when dividing the result by one operand does not give back the other, or when two
+                    // negative operands give a negative result, which catches the minimum times -1.
+                    Label fits = new Label();
+                    pushLongs(a, b);
+                    mv.visitInsn(LMUL);
+                    mv.visitVarInsn(LSTORE, result);
+                    mv.visitVarInsn(LLOAD, b);
+                    mv.visitInsn(LCONST_0);
+                    mv.visitInsn(LCMP);
+                    mv.visitJumpInsn(IFEQ, fits);
+                    pushLongs(result, b);
+                    mv.visitInsn(LDIV);
+                    mv.visitVarInsn(LLOAD, a);
+                    mv.visitInsn(LCMP);
+                    mv.visitJumpInsn(IFNE, fallback);
+                    pushLongs(a, b);
+                    mv.visitInsn(LAND);
+                    mv.visitVarInsn(LLOAD, result);
+                    mv.visitInsn(LAND);
+                    mv.visitInsn(LCONST_0);
+                    mv.visitInsn(LCMP);
+                    mv.visitJumpInsn(IFLT, fallback);
+                    mv.visitLabel(fits);
+                    break;
+                case "/":
+                    // Only a division without remainder answers a SmallInteger.
+                    jumpUnlessDivisible(a, b, fallback);
+                    pushLongs(a, b);
+                    mv.visitInsn(LREM);
+                    mv.visitInsn(LCONST_0);
+                    mv.visitInsn(LCMP);
+                    mv.visitJumpInsn(IFNE, fallback);
+                    pushLongs(a, b);
+                    mv.visitInsn(LDIV);
+                    mv.visitVarInsn(LSTORE, result);
+                    break;
+                case "//":
+                    jumpUnlessDivisible(a, b, fallback);
+                    pushLongs(a, b);
+                    mv.visitMethodInsn(INVOKESTATIC, "java/lang/Math", "floorDiv", "(JJ)J", false);
+                    mv.visitVarInsn(LSTORE, result);
+                    break;
+                case "\\\\":
+                    jumpUnlessDivisible(a, b, fallback);
+                    pushLongs(a, b);
+                    mv.visitMethodInsn(INVOKESTATIC, "java/lang/Math", "floorMod", "(JJ)J", false);
+                    mv.visitVarInsn(LSTORE, result);
+                    break;
+                case "bitAnd:":
+                    pushLongs(a, b);
+                    mv.visitInsn(LAND);
+                    mv.visitVarInsn(LSTORE, result);
+                    break;
+                case "bitOr:":
+                    pushLongs(a, b);
+                    mv.visitInsn(LOR);
+                    mv.visitVarInsn(LSTORE, result);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown special selector '" + selector + "'.");
+            }
         }
 
-        private void setupTryBlock() {
-            if (tryCatchRecords.isEmpty())
-                return;
-            log("setupTryBlock");
-            for (BlockAnswerRecord record : tryCatchRecords)
-                mv.visitTryCatchBlock(tryStartLabel, tryEndLabel, record.handlerLabel, record.exceptionName);
-            mv.visitLabel(tryStartLabel);
+        private void pushLongs(int first, int second) {
+            mv.visitVarInsn(LLOAD, first);
+            mv.visitVarInsn(LLOAD, second);
+        }
+
+        private void jumpIfNegative(int a, int b, int c, int d, Label label) {
+            // Jumps when (a ^ b) & (c ^ d) is negative.
+            pushLongs(a, b);
+            mv.visitInsn(LXOR);
+            pushLongs(c, d);
+            mv.visitInsn(LXOR);
+            mv.visitInsn(LAND);
+            mv.visitInsn(LCONST_0);
+            mv.visitInsn(LCMP);
+            mv.visitJumpInsn(IFLT, label);
+        }
+
+        private void jumpUnlessDivisible(int a, int b, Label label) {
+            // Jumps when the divisor is zero, or when dividing the minimum by -1 would overflow.
+            Label divisible = new Label();
+            mv.visitVarInsn(LLOAD, b);
+            mv.visitInsn(LCONST_0);
+            mv.visitInsn(LCMP);
+            mv.visitJumpInsn(IFEQ, label);
+            mv.visitVarInsn(LLOAD, b);
+            mv.visitLdcInsn(-1L);
+            mv.visitInsn(LCMP);
+            mv.visitJumpInsn(IFNE, divisible);
+            mv.visitVarInsn(LLOAD, a);
+            mv.visitLdcInsn(Long.MIN_VALUE);
+            mv.visitInsn(LCMP);
+            mv.visitJumpInsn(IFEQ, label);
+            mv.visitLabel(divisible);
+        }
+
+        private void inlineKeywordMessage(SmalltalkParser.KeywordMessageContext ctx) {
+            // The receiver is on the stack and the blocks are compiled in place of the send, guarded by tests of the
+            // receiver. Any receiver of another kind is sent the message for real.
+            String selector = selectorOf(ctx);
+            log("inlineKeywordMessage " + selector);
+            visitLine(mv, ctx.keywordPair().get(0).KEYWORD().getSymbol().getLine());
+            // The locals of the loop and of the variables of its blocks are free again once it is done.
+            int scratch = nextLocal;
+            if ("ifNil:".equals(selector))
+                inlineIfNil(ctx);
+            else if ("timesRepeat:".equals(selector))
+                inlineTimesRepeat(ctx);
+            else if (selector.startsWith("to:"))
+                inlineToDo(ctx);
+            else
+                inlineConditional(ctx, selector);
+            nextLocal = scratch;
+        }
+
+        private void inlineIfNil(SmalltalkParser.KeywordMessageContext ctx) {
+            Label end = new Label();
+            pushDuplicate(mv);
+            pushNil(mv);
+            mv.visitJumpInsn(IF_ACMPNE, end);
+            pop(mv);
+            inlineBlock(literalBlock(ctx.keywordPair().get(0).binarySend()));
+            mv.visitLabel(end);
         }
 
-        private void setupCatchBlock() {
-            if (tryCatchRecords.isEmpty())
+        private void inlineConditional(SmalltalkParser.KeywordMessageContext ctx, String selector) {
+            Label end = new Label();
+            Label notTrue = new Label();
+            Label notBoolean = new Label();
+            pushDuplicate(mv);
+            pushTrue(mv);
+            mv.visitJumpInsn(IF_ACMPNE, notTrue);
+            inlineBranch(ctx, selector, true);
+            mv.visitJumpInsn(GOTO, end);
+            mv.visitLabel(notTrue);
+            pushDuplicate(mv);
+            pushFalse(mv);
+            mv.visitJumpInsn(IF_ACMPNE, notBoolean);
+            inlineBranch(ctx, selector, false);
+            mv.visitJumpInsn(GOTO, end);
+            mv.visitLabel(notBoolean);
+            sendInlinedKeywordMessage(ctx, null);
+            mv.visitLabel(end);
+        }
+
+        private void inlineBranch(SmalltalkParser.KeywordMessageContext ctx, String selector, boolean condition) {
+            // The receiver left on the stack is the answer of or: when true and of and: when false.
+            if (selector.equals(condition ? "or:" : "and:"))
                 return;
-            log("setupCatchBlock");
-            for (BlockAnswerRecord record : tryCatchRecords) {
-                mv.visitJumpInsn(GOTO, tryEndLabel);
-                mv.visitLabel(record.handlerLabel);
-                mv.visitMethodInsn(INVOKEVIRTUAL, record.exceptionName, "answer", "()Lst/redline/core/PrimObject;", false);
-                mv.visitInsn(ARETURN);
+            pop(mv);
+            for (SmalltalkParser.KeywordPairContext keywordPair : ctx.keywordPair()) {
+                String keyword = keywordPair.KEYWORD().getText();
+                if (keyword.equals(condition ? "ifTrue:" : "ifFalse:") || keyword.equals(condition ? "and:" : "or:")) {
+                    inlineBlock(literalBlock(keywordPair.binarySend()));
+                    return;
+                }
+            }
+            pushNil(mv);
+        }
+
+        private void inlineWhile(SmalltalkParser.KeywordSendContext ctx) {
+            // The receiver block is the condition, compiled in place before each iteration. The loop answers nil.
+            SmalltalkParser.KeywordMessageContext message = ctx.keywordMessage();
+            boolean whileTrue = "whileTrue:".equals(selectorOf(message));
+            log("inlineKeywordMessage " + selectorOf(message));
+            visitLine(mv, message.keywordPair().get(0).KEYWORD().getSymbol().getLine());
+            int scratch = nextLocal;
+            Label loop = new Label();
+            Label iterate = new Label();
+            Label exit = new Label();
+            Label end = new Label();
+            Label test = new Label();
+            mv.visitLabel(loop);
+            inlineBlock(literalBlock(ctx.binarySend()));
+            mv.visitLabel(test);
+            pushDuplicate(mv);
+            pushBooleanObject(whileTrue);
+            mv.visitJumpInsn(IF_ACMPEQ, iterate);
+            pushDuplicate(mv);
+            pushBooleanObject(!whileTrue);
+            mv.visitJumpInsn(IF_ACMPEQ, exit);
+            // Neither true nor false, so the condition is asked for the Boolean it stands for, and that is tested.
+            invokePerform(mv, "mustBeBoolean", 0, false);
+            mv.visitJumpInsn(GOTO, test);
+            mv.visitLabel(exit);
+            pop(mv);
+            mv.visitJumpInsn(GOTO, end);
+            mv.visitLabel(iterate);
+            pop(mv);
+            inlineBlock(literalBlock(message.keywordPair().get(0).binarySend()));
+            pop(mv);
+            mv.visitJumpInsn(GOTO, loop);
+            mv.visitLabel(end);
+            pushNil(mv);
+            nextLocal = scratch;
+        }
+
+        private void pushBooleanObject(boolean value) {
+            if (value)
+                pushTrue(mv);
+            else
+                pushFalse(mv);
+        }
+
+        private void inlineTimesRepeat(SmalltalkParser.KeywordMessageContext ctx) {
+            // A SmallInteger receiver is counted down in a long. The loop answers the receiver.
+            int receiver = nextLocal++;
+            int count = nextLocal;
+            nextLocal += 2;
+            Label loop = new Label();
+            Label fallback = new Label();
+            Label done = new Label();
+            Label end = new Label();
+            storeLocal(mv, receiver);
+            pushLocal(mv, receiver);
+            jumpUnlessSmallInteger(mv, fallback);
+            pushLocal(mv, receiver);
+            pushLongValue(mv);
+            mv.visitVarInsn(LSTORE, count);
+            mv.visitLabel(loop);
+            mv.visitVarInsn(LLOAD, count);
+            mv.visitInsn(LCONST_0);
+            mv.visitInsn(LCMP);
+            mv.visitJumpInsn(IFLE, done);
+            inlineBlock(literalBlock(ctx.keywordPair().get(0).binarySend()));
+            pop(mv);
+            mv.visitVarInsn(LLOAD, count);
+            mv.visitInsn(LCONST_1);
+            mv.visitInsn(LSUB);
+            mv.visitVarInsn(LSTORE, count);
+            mv.visitJumpInsn(GOTO, loop);
+            mv.visitLabel(fallback);
+            pushLocal(mv, receiver);
+            sendInlinedKeywordMessage(ctx, null);
+            mv.visitJumpInsn(GOTO, end);
+            mv.visitLabel(done);
+            pushLocal(mv, receiver);
+            mv.visitLabel(end);
+        }
+
+        private void inlineToDo(SmalltalkParser.KeywordMessageContext ctx) {
+            // With SmallInteger bounds and step the index is a long, boxed only as the argument of the block. The
+            // loop answers the receiver.
+            List<SmalltalkParser.KeywordPairContext> keywordPairs = ctx.keywordPair();
+            boolean by = keywordPairs.size() == 3;
+            int receiver = nextLocal++;
+            storeLocal(mv, receiver);
+            int[] evaluated = new int[keywordPairs.size()];
+            Arrays.fill(evaluated, -1);
+            for (int i = 0; i < keywordPairs.size() - 1; i++) {
+                keywordPairs.get(i).binarySend().accept(currentVisitor());
+                evaluated[i] = nextLocal++;
+                storeLocal(mv, evaluated[i]);
+            }
+            int index = nextLocal;
+            int limit = nextLocal + 2;
+            int step = nextLocal + 4;
+            int next = nextLocal + 6;
+            nextLocal += 8;
+            Label loop = new Label();
+            Label descending = new Label();
+            Label body = new Label();
+            Label fallback = new Label();
+            Label done = new Label();
+            Label end = new Label();
+            pushLocal(mv, receiver);
+            jumpUnlessSmallInteger(mv, fallback);
+            for (int i = 0; i < keywordPairs.size() - 1; i++) {
+                pushLocal(mv, evaluated[i]);
+                jumpUnlessSmallInteger(mv, fallback);
+            }
+            pushLocal(mv, receiver);
+            pushLongValue(mv);
+            mv.visitVarInsn(LSTORE, index);
+            pushLocal(mv, evaluated[0]);
+            pushLongValue(mv);
+            mv.visitVarInsn(LSTORE, limit);
+            if (by) {
+                pushLocal(mv, evaluated[1]);
+                pushLongValue(mv);
+                mv.visitVarInsn(LSTORE, step);
+                mv.visitVarInsn(LLOAD, step);
+                mv.visitInsn(LCONST_0);
+                mv.visitInsn(LCMP);
+                mv.visitJumpInsn(IFEQ, fallback);
+            } else {
+                mv.visitInsn(LCONST_1);
+                mv.visitVarInsn(LSTORE, step);
+            }
+            mv.visitLabel(loop);
+            if (by) {
+                mv.visitVarInsn(LLOAD, step);
+                mv.visitInsn(LCONST_0);
+                mv.visitInsn(LCMP);
+                mv.visitJumpInsn(IFLT, descending);
+            }
+            mv.visitVarInsn(LLOAD, index);
+            mv.visitVarInsn(LLOAD, limit);
+            mv.visitInsn(LCMP);
+            mv.visitJumpInsn(IFGT, done);
+            if (by) {
+                mv.visitJumpInsn(GOTO, body);
+                mv.visitLabel(descending);
+                mv.visitVarInsn(LLOAD, index);
+                mv.visitVarInsn(LLOAD, limit);
+                mv.visitInsn(LCMP);
+                mv.visitJumpInsn(IFLT, done);
+                mv.visitLabel(body);
+            }
+            pushInteger(mv, index);
+            inlineBlock(literalBlock(keywordPairs.get(keywordPairs.size() - 1).binarySend()));
+            pop(mv);
+            // The next index, ending the loop when it would overflow rather than wrapping around.
+            mv.visitVarInsn(LLOAD, index);
+            mv.visitVarInsn(LLOAD, step);
+            mv.visitInsn(LADD);
+            mv.visitVarInsn(LSTORE, next);
+            mv.visitVarInsn(LLOAD, index);
+            mv.visitVarInsn(LLOAD, next);
+            mv.visitInsn(LXOR);
+            mv.visitVarInsn(LLOAD, step);
+            mv.visitVarInsn(LLOAD, next);
+            mv.visitInsn(LXOR);
+            mv.visitInsn(LAND);
+            mv.visitInsn(LCONST_0);
+            mv.visitInsn(LCMP);
+            mv.visitJumpInsn(IFLT, done);
+            mv.visitVarInsn(LLOAD, next);
+            mv.visitVarInsn(LSTORE, index);
+            mv.visitJumpInsn(GOTO, loop);
+            mv.visitLabel(fallback);
+            pushLocal(mv, receiver);
+            sendInlinedKeywordMessage(ctx, evaluated);
+            mv.visitJumpInsn(GOTO, end);
+            mv.visitLabel(done);
+            pushLocal(mv, receiver);
+            mv.visitLabel(end);
+        }
+
+        private void inlineBlock(SmalltalkParser.BlockContext block) {
+            // The statements of the block compiled in place, leaving the value of the last one on the stack. The
+            // argument of a block that takes one is taken off the stack, and its arguments and temporaries get locals
+            // of their own that shadow any of the same name while it is compiled.
+            initializeKeyword();
+            Set<String> saved = escaping;
+            escaping = new HashSet<String>(saved);
+            Set<String> captured = new HashSet<String>();
+            for (int i = 0; i < block.getChildCount(); i++)
+                collectFreeNames(block.getChild(i), Collections.<String>emptySet(), captured, false);
+            Map<String, Integer> shadowed = new HashMap<String, Integer>();
+            List<String> added = new ArrayList<String>();
+            if (block.blockParamList() != null)
+                for (TerminalNode node : block.blockParamList().BLOCK_PARAM())
+                    bindInlined(node.getText().substring(1), captured, shadowed);
+            if (block.sequence().temps() != null) {
+                if (temporaries == null)
+                    initializeTemporaryVariableMap();
+                for (TerminalNode node : block.sequence().temps().IDENTIFIER()) {
+                    pushNil(mv);
+                    bindInlined(node.getText(), captured, shadowed);
+                    if (!isTemporary(node.getText())) {
+                        addToTemporaryVariableMap(node);
+                        added.add(node.getText());
+                    }
+                }
+            }
+            SmalltalkParser.StatementsContext statements = block.sequence().statements();
+            if (statements == null)
+                pushNil(mv);
+            else if (statements instanceof SmalltalkParser.StatementExpressionsContext)
+                inlineExpressions(((SmalltalkParser.StatementExpressionsContext) statements).expressions());
+            else if (statements instanceof SmalltalkParser.StatementExpressionsAnswerContext) {
+                inlineExpressions(((SmalltalkParser.StatementExpressionsAnswerContext) statements).expressions());
+                pop(mv);
+                ((SmalltalkParser.StatementExpressionsAnswerContext) statements).answer().accept(currentVisitor());
+            } else
+                statements.accept(currentVisitor());
+            for (Map.Entry<String, Integer> entry : shadowed.entrySet())
+                if (entry.getValue() == null)
+                    slots.remove(entry.getKey());
+                else
+                    slots.put(entry.getKey(), entry.getValue());
+            for (String name : added)
+                temporaries.remove(name);
+            escaping = saved;
+            removeKeyword();
+        }
+
+        private void bindInlined(String name, Set<String> captured, Map<String, Integer> shadowed) {
+            // The value on the stack becomes the variable, held in a new cell when a block inside captures it.
+            if (!shadowed.containsKey(name))
+                shadowed.put(name, slots.get(name));
+            int slot = nextLocal++;
+            slots.put(name, slot);
+            if (captured.contains(name)) {
+                escaping.add(name);
+                pushNewCell(mv);
+            } else
+                escaping.remove(name);
+            storeLocal(mv, slot);
+        }
+
+        private void inlineExpressions(SmalltalkParser.ExpressionsContext ctx) {
+            ctx.expression().accept(currentVisitor());
+            for (SmalltalkParser.ExpressionListContext expressionList : ctx.expressionList()) {
+                pop(mv);
+                expressionList.expression().accept(currentVisitor());
             }
-            mv.visitLabel(tryEndLabel);
+        }
+
+        private void sendInlinedKeywordMessage(SmalltalkParser.KeywordMessageContext ctx, int[] evaluated) {
+            // Not the expected receiver, so the blocks are made closures after all. The variables they use that are
+            // not already in cells are boxed for the send and written back after it, and when the home has no token
+            // a ^ in them unwinds to a token of this send. Instance variables they use are reached through a cell
+            // holding the receiver.
+            Set<String> names = new LinkedHashSet<String>();
+            for (SmalltalkParser.KeywordPairContext keywordPair : ctx.keywordPair())
+                if (inlinedArgumentCount(keywordPair.KEYWORD().getText()) >= 0)
+                    names.addAll(closureNames(literalBlock(keywordPair.binarySend())));
+            Set<String> saved = escaping;
+            escaping = new HashSet<String>(saved);
+            Map<String, Integer> boxed = new LinkedHashMap<String, Integer>();
+            for (String name : names)
+                if (isLocal(name) ? !saved.contains(name) : isArgument(name)) {
+                    int slot = nextLocal++;
+                    if (isLocal(name))
+                        pushLocal(mv, slots.get(name));
+                    else
+                        loadArgument(indexOfArgument(name));
+                    pushNewCell(mv);
+                    storeLocal(mv, slot);
+                    boxed.put(name, slots.get(name));
+                    slots.put(name, slot);
+                    escaping.add(name);
+                }
+            int token = -1;
+            Label tryEnd = new Label();
+            Label handler = new Label();
+            if (names.contains(HOME) && !isLocal(HOME) && !isCaptured(HOME)) {
+                token = nextLocal++;
+                pushNull(mv);
+                pushNewCell(mv);
+                storeLocal(mv, token);
+                slots.put(HOME, token);
+                escaping.add(HOME);
+                Label tryStart = new Label();
+                mv.visitTryCatchBlock(tryStart, tryEnd, handler, BLOCK_ANSWER);
+                mv.visitLabel(tryStart);
+            }
+            boolean receiverCaptured = !isLocal(SELF) && !isCaptured(SELF) && usesInstanceVariables(names, Collections.<String>emptySet());
+            if (receiverCaptured) {
+                bindReceiverCell();
+                escaping.add(SELF);
+            }
+            sendKeywordMessage(ctx, false, evaluated);
+            if (receiverCaptured)
+                slots.remove(SELF);
+            if (token >= 0) {
+                mv.visitLabel(tryEnd);
+                slots.remove(HOME);
+            }
+            for (Map.Entry<String, Integer> entry : boxed.entrySet())
+                if (entry.getValue() == null)
+                    slots.remove(entry.getKey());
+                else {
+                    pushLocal(mv, slots.get(entry.getKey()));
+                    pushCellValue(mv);
+                    storeLocal(mv, entry.getValue());
+                    slots.put(entry.getKey(), entry.getValue());
+                }
+            escaping = saved;
+            if (token >= 0) {
+                Label after = new Label();
+                mv.visitJumpInsn(GOTO, after);
+                mv.visitLabel(handler);
+                pushLocal(mv, token);
+                mv.visitMethodInsn(INVOKEVIRTUAL, BLOCK_ANSWER, "answerFor", "(Lst/redline/core/PrimCell;)Lst/redline/core/PrimObject;", false);
+                answer();
+                mv.visitLabel(after);
+            }
+        }
+
+        private boolean takeSendToSuper() {
+            // Arguments are visited before the send, so the flag is taken before they can see it.
+            boolean toSuper = sendToSuper;
+            sendToSuper = false;
+            return toSuper;
         }
 
         public Void visitKeywordPair(@NotNull SmalltalkParser.KeywordPairContext ctx) {
@@ -793,8 +1840,10 @@ public class SmalltalkGeneratingVisitor extends SmalltalkBaseVisitor<Void> imple
                 pushTrue(mv);
             else if ("false".equals(name))
                 pushFalse(mv);
-            else if ("super".equals(name))
+            else if ("super".equals(name)) {
                 pushSuper(mv, pseudoVariable.getSymbol().getLine());
+                sendToSuper = true;
+            }
             else
                 throw new RuntimeException("visitPseudoVariable unknown variable: " + name);
             return null;
@@ -805,7 +1854,51 @@ public class SmalltalkGeneratingVisitor extends SmalltalkBaseVisitor<Void> imple
             TerminalNode node = ctx.STRING();
             String value = node.getSymbol().getText();
             value = value.substring(1, value.length() - 1);
-            pushNewObject(mv, "smalltalkString", value, node.getSymbol().getLine());
+            pushLiteralObject(mv, "string", value, node.getSymbol().getLine());
+            return null;
+        }
+
+        public Void visitNumber(@NotNull SmalltalkParser.NumberContext ctx) {
+            log("visitNumber " + ctx.getText());
+            pushLiteralObject(mv, "number", numberValue(ctx), ctx.getStart().getLine());
+            return null;
+        }
+
+        private Object numberValue(SmalltalkParser.NumberContext ctx) {
+            // A Long for SmallIntegers, a String for larger integers and a Double for floats.
+            SmalltalkParser.NumberExpContext numberExp = ctx.numberExp();
+            if (numberExp != null) {
+                SmalltalkParser.StFloatContext stFloat = numberExp.stFloat();
+                long exponent = Long.parseLong(numberExp.stInteger(stFloat == null ? 1 : 0).getText());
+                if (stFloat != null || exponent < 0)
+                    return Double.valueOf(numberExp.getText());
+                return integerValue(new BigInteger(numberExp.stInteger(0).getText()).multiply(BigInteger.TEN.pow((int) exponent)));
+            }
+            SmalltalkParser.HexContext hex = ctx.hex();
+            if (hex != null) {
+                String digits = hex.getText().substring(hex.getText().indexOf('r') + 1);
+                return integerValue(new BigInteger((hex.MINUS() != null ? "-" : "") + digits, 16));
+            }
+            SmalltalkParser.StFloatContext stFloat = ctx.stFloat();
+            if (stFloat != null)
+                return Double.valueOf(stFloat.getText());
+            SmalltalkParser.StIntegerContext stInteger = ctx.stInteger();
+            if (stInteger != null)
+                return integerValue(new BigInteger(stInteger.getText()));
+            throw new RuntimeException("visitNumber no alternative found.");
+        }
+
+        private Object integerValue(BigInteger value) {
+            // The digits of an integer too large for a long, as the constant pool holds nothing larger.
+            if (value.bitLength() < Long.SIZE)
+                return value.longValue();
+            return value.toString();
+        }
+
+        public Void visitCharConstant(@NotNull SmalltalkParser.CharConstantContext ctx) {
+            log("visitCharConstant " + ctx.CHARACTER_CONSTANT().getSymbol().getText());
+            TerminalNode node = ctx.CHARACTER_CONSTANT();
+            pushLiteralObject(mv, "character", (int) node.getSymbol().getText().charAt(1), node.getSymbol().getLine());
             return null;
         }
 
@@ -815,7 +1908,7 @@ public class SmalltalkGeneratingVisitor extends SmalltalkBaseVisitor<Void> imple
             String symbol = node.getText();
             if (haveKeyword())
                 addArgumentToKeyword(symbol);
-            pushNewObject(mv, "smalltalkSymbol", symbol, node.getLine());
+            pushLiteralObject(mv, "symbol", symbol, node.getLine());
             return null;
         }
 
@@ -849,69 +1942,65 @@ public class SmalltalkGeneratingVisitor extends SmalltalkBaseVisitor<Void> imple
             TerminalNode identifier = ctx.variable().IDENTIFIER();
             String name = identifier.getSymbol().getText();
             visitLine(mv, identifier.getSymbol().getLine());
-            if (isTemporary(name))
-                pushTemporary(mv, indexOfTemporary(name));
+            if (isLocal(name))
+                loadLocal(name);
             else if (isArgument(name))
-                pushArgument(mv, indexOfArgument(name));
+                loadArgument(indexOfArgument(name));
+            else if (isCaptured(name))
+                loadCaptured(name);
             else if ("JVM".equals(name))
                 referencedJVM = true;
+            else if (isInstanceVariable(name))
+                loadInstanceVariable(name);
+            else if (isUndeclared(name))
+                throw undeclared(identifier);
             else
                 pushReference(mv, name);
             return null;
         }
 
         public Void visitBlock(@NotNull SmalltalkParser.BlockContext ctx) {
-            log("visitBlock " + peekKeyword() + " " + blockNumber);
-            KeywordRecord keywordRecord = peekKeyword();
+            // A block that is not a keyword argument, a receiver or an assigned value, is named like any other.
+            KeywordRecord keywordRecord = haveKeyword() ? peekKeyword() : new KeywordRecord();
+            log("visitBlock " + keywordRecord + " " + blockNumber);
             String name = makeBlockMethodName(keywordRecord);
             boolean methodBlock = keywordRecord.keyword.toString().endsWith("withMethod:");
-            BlockGeneratorVisitor blockGeneratorVisitor = new BlockGeneratorVisitor(cw, name, blockNumber);
+            boolean blockContextFree = !needsContext(ctx.sequence());
+            int blockArgumentCount = ctx.blockParamList() == null ? 0 : ctx.blockParamList().BLOCK_PARAM().size();
+            // Methods are not closures, their blocks see only their own and global variables.
+            List<String> blockCaptured = methodBlock ? Collections.<String>emptyList() : capturedBy(ctx);
+            boolean blockInstanceVariables = methodBlock ? isInstanceMethodBlock(ctx) : instanceVariables;
+            BlockGeneratorVisitor blockGeneratorVisitor = new BlockGeneratorVisitor(cw, name, blockNumber, methodBlock, blockContextFree, blockArgumentCount, blockCaptured, blockInstanceVariables);
             pushCurrentVisitor(blockGeneratorVisitor);
             blockGeneratorVisitor.handleBlock(ctx);
             blockNumber = blockGeneratorVisitor.blockNumber;
             removeJVMGeneratorVisitor();
             popCurrentVisitor();
             int line = ctx.BLOCK_START().getSymbol().getLine();
-            if (methodBlock)
+            if (methodBlock && blockContextFree)
+                pushNewDirectMethod(mv, fullClassName(), name, LAMBDA_BLOCK_SIG, directSignature(blockArgumentCount), line);
+            else if (methodBlock)
                 pushNewMethod(mv, fullClassName(), name, LAMBDA_BLOCK_SIG, line);
-            else {
-                String blockAnswerClassName = makeBlockAnswerClassName(name);
-                pushNewBlock(mv, fullClassName(), name, LAMBDA_BLOCK_SIG, line, blockGeneratorVisitor.isAnswerBlock(), blockAnswerClassName);
-                if (blockGeneratorVisitor.isAnswerBlock()) {
-                    loadBlockAnswerClass(blockAnswerClassName);
-                    tryCatchRecords.add(new BlockAnswerRecord(blockAnswerClassName));
-                }
-            }
+            else if (!blockCaptured.isEmpty()) {
+                visitLine(mv, line);
+                pushReceiver(mv);
+                pushCells(blockCaptured);
+                invokeNewLambda(mv, fullClassName(), name, LAMBDA_BLOCK_SIG, CELLS);
+                wrapNewBlock(mv);
+            } else
+                pushNewBlock(mv, fullClassName(), name, LAMBDA_BLOCK_SIG, line);
             return null;
         }
 
-        private void loadBlockAnswerClass(String blockAnswerClassName) {
-            log("loadBlockAnswerClass: " + blockAnswerClassName);
-            byte[] classBytes = createBlockAnswerClass(blockAnswerClassName);
-            SmalltalkClassLoader classLoader = classLoader();
-            classLoader.defineClass(classBytes);
-        }
-
-        private SmalltalkClassLoader classLoader() {
-            return (SmalltalkClassLoader) Thread.currentThread().getContextClassLoader();
-        }
-
-        private byte[] createBlockAnswerClass(String blockAnswerClassName) {
-            String className = blockAnswerClassName.replaceAll("\\.", "/");
-            ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
-            MethodVisitor mv;
-            cw.visit(BYTECODE_VERSION, ACC_PUBLIC + ACC_SUPER, className, null, "st/redline/core/PrimBlockAnswer", null);
-            cw.visitSource(className() + sourceFileExtension(), null);
-            mv = cw.visitMethod(ACC_PUBLIC, "<init>", "(Lst/redline/core/PrimObject;)V", null, null);
-            mv.visitCode();
-            mv.visitVarInsn(ALOAD, 0);
-            mv.visitVarInsn(ALOAD, 1);
-            mv.visitMethodInsn(INVOKESPECIAL, "st/redline/core/PrimBlockAnswer", "<init>", "(Lst/redline/core/PrimObject;)V", false);
-            mv.visitInsn(RETURN);
-            mv.visitMaxs(2, 2);
-            mv.visitEnd();
-            cw.visitEnd();
-            return cw.toByteArray();
+        private void pushCells(List<String> names) {
+            pushNumber(mv, names.size());
+            mv.visitTypeInsn(ANEWARRAY, CELL);
+            for (int i = 0; i < names.size(); i++) {
+                pushDuplicate(mv);
+                pushNumber(mv, i);
+                pushCell(names.get(i));
+                mv.visitInsn(AASTORE);
+            }
         }
 
         public Void visitSubexpression(@NotNull SmalltalkParser.SubexpressionContext ctx) {
@@ -927,19 +2016,24 @@ public class SmalltalkGeneratingVisitor extends SmalltalkBaseVisitor<Void> imple
             throw new RuntimeException("visitVariable should have been handed before now.");
         }
 
-        private String makeBlockAnswerClassName(String blockName) {
-            return packageName() + '.' + className() + "$A" + blockName;
-        }
-
         private String makeBlockMethodName(KeywordRecord keywordRecord) {
             StringBuilder name = new StringBuilder();
             if (keywordRecord.firstArgument.length() == 0) {
                 blockNumber++;
                 name.append("B").append(blockNumber);
             } else
-                name.append(keywordRecord.firstArgument.toString());
+                appendJavaName(name, keywordRecord.firstArgument.toString());
             return name.toString();
         }
+
+        private void appendJavaName(StringBuilder name, String selector) {
+            // Binary selectors may use characters not allowed in a JVM method name, each given as $ and its code.
+            for (char c : selector.toCharArray())
+                if ("./;[<>".indexOf(c) >= 0)
+                    name.append('$').append((int) c);
+                else
+                    name.append(c);
+        }
     }
 
 
@@ -949,12 +2043,21 @@ public class SmalltalkGeneratingVisitor extends SmalltalkBaseVisitor<Void> imple
         private String blockName;
         private boolean returnRequired;
 
-        public BlockGeneratorVisitor(ClassWriter cw, String name, int blockNumber) {
+        public BlockGeneratorVisitor(ClassWriter cw, String name, int blockNumber, boolean methodBlock, boolean contextFree, int argumentCount, List<String> captured, boolean instanceVariables) {
             super(cw);
             this.cw = cw;
             this.blockName = name;
             this.returnRequired = false;
             this.blockNumber = blockNumber;
+            this.home = methodBlock;
+            this.instanceVariables = instanceVariables;
+            this.contextFree = contextFree;
+            this.argumentCount = argumentCount;
+            this.captured = captured;
+            // Locals follow the parameters of the method the body is compiled into.
+            this.nextLocal = contextFree ? 2 + argumentCount : 3;
+            if (!captured.isEmpty())
+                this.cellsSlot = nextLocal++;
         }
 
         public void handleBlock(@NotNull SmalltalkParser.BlockContext ctx) {
@@ -968,10 +2071,8 @@ public class SmalltalkGeneratingVisitor extends SmalltalkBaseVisitor<Void> imple
                 blockSequence.accept(currentVisitor());
             returnRequired = returnRequired(blockSequence);
             closeBlockLambdaMethod(returnRequired);
-        }
-
-        public boolean isAnswerBlock() {
-            return !returnRequired;
+            if (contextFree || !captured.isEmpty())
+                writeLambdaBridge();
         }
 
         private boolean returnRequired(SmalltalkParser.SequenceContext blockSequence) {
@@ -1008,15 +2109,51 @@ public class SmalltalkGeneratingVisitor extends SmalltalkBaseVisitor<Void> imple
             log("closeBlockLambdaMethod: " + blockName + " " + returnRequired);
             if (returnRequired)
                 mv.visitInsn(ARETURN);
+            closeHome();
             mv.visitMaxs(0, 0);
             mv.visitEnd();
         }
 
         private void openBlockLambdaMethod() {
             log("openBlockLambdaMethod: " + blockName);
-            mv = cw.visitMethod(ACC_PRIVATE + ACC_STATIC + ACC_SYNTHETIC, blockName, LAMBDA_BLOCK_SIG, null, null);
+            mv = cw.visitMethod(ACC_PRIVATE + ACC_STATIC + ACC_SYNTHETIC, blockName, bodySignature(), null, null);
             mv.visitCode();
         }
+
+        private String bodySignature() {
+            // Captured cells come last so that thiz, receiver and context keep their usual slots.
+            String signature = contextFree ? directSignature(argumentCount) : LAMBDA_BLOCK_SIG;
+            if (captured.isEmpty())
+                return signature;
+            int end = signature.indexOf(')');
+            return signature.substring(0, end) + CELLS + signature.substring(end);
+        }
+
+        private void writeLambdaBridge() {
+            // The LambdaBlock entry of the block, taking its arguments out of the context when the body is context
+            // free and passing the cells it captured, which LambdaMetafactory supplies first.
+            log("writeLambdaBridge: " + blockName);
+            String cells = captured.isEmpty() ? "" : CELLS;
+            int first = cells.isEmpty() ? 0 : 1;
+            mv = cw.visitMethod(ACC_PRIVATE + ACC_STATIC + ACC_SYNTHETIC, blockName, "(" + cells + LAMBDA_BLOCK_SIG.substring(1), null, null);
+            mv.visitCode();
+            pushLocal(mv, first);
+            pushLocal(mv, first + 1);
+            if (contextFree)
+                for (int i = 0; i < argumentCount; i++) {
+                    pushLocal(mv, first + 2);
+                    pushNumber(mv, i);
+                    mv.visitMethodInsn(INVOKEVIRTUAL, contextName(), "argumentAt", "(I)Lst/redline/core/PrimObject;", false);
+                }
+            else
+                pushLocal(mv, first + 2);
+            if (!cells.isEmpty())
+                pushLocal(mv, 0);
+            mv.visitMethodInsn(INVOKESTATIC, fullClassName(), blockName, bodySignature(), false);
+            mv.visitInsn(ARETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
     }
 
 
@@ -1137,17 +2274,6 @@ public class SmalltalkGeneratingVisitor extends SmalltalkBaseVisitor<Void> imple
     }
 
 
-    private class BlockAnswerRecord {
-
-        public final String exceptionName;
-        public Label handlerLabel;
-
-        public BlockAnswerRecord(String name) {
-            this.exceptionName = name.replaceAll("\\.", "/");
-            this.handlerLabel = new Label();
-        }
-    }
-
     private class KeywordRecord {
 
         public StringBuilder keyword = new StringBuilder();
@@ -0,0 +1,107 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution. */
+package st.redline.core;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+// Row displacement dispatch. The rows of all compressed classes share one array, each placed at a displacement
+// where its slots collide with no other row's.
+
+public class CompressedDispatchTable extends DispatchTable {
+
+    private static volatile Entry[] rows = new Entry[1024];
+    private static int used;
+
+    private final int displacement;
+    private final Entry[] row;
+    private final Map<Selector, Entry> misses = new ConcurrentHashMap<Selector, Entry>();
+
+    public CompressedDispatchTable(PrimClass cls) {
+        this.row = rowOf(cls);
+        this.displacement = place(row);
+    }
+
+    private static Entry[] rowOf(PrimClass cls) {
+        Map<Selector, Entry> row = new IdentityHashMap<Selector, Entry>();
+        for (PrimObject current = cls; current instanceof PrimClass && !(current instanceof PrimNil); current = current.superclass())
+            for (Map.Entry<Selector, PrimObject> method : ((PrimClass) current).methods().entrySet())
+                if (!row.containsKey(method.getKey()))
+                    row.put(method.getKey(), new Entry(cls, method.getKey(), method.getValue(), current));
+        return row.values().toArray(new Entry[row.size()]);
+    }
+
+    public Entry lookup(PrimClass cls, Selector selector) {
+        int index = displacement + selector.id();
+        Entry[] current = rows;
+        if (index >= 0 && index < current.length) {
+            Entry entry = current[index];
+            if (entry != null && entry.cls == cls && entry.selector == selector)
+                return hit(entry);
+        }
+        // Not in the row, so not understood by any PrimClass in the hierarchy.
+        Entry entry = misses.get(selector);
+        if (entry != null)
+            return hit(entry);
+        entry = fill(cls, selector);
+        misses.put(selector, entry);
+        return entry;
+    }
+
+    public boolean invalidate(Selector selector) {
+        // The row itself changes, so the class must build a new table.
+        release();
+        return false;
+    }
+
+    public void release() {
+        synchronized (CompressedDispatchTable.class) {
+            for (Entry entry : row) {
+                int index = displacement + entry.selector.id();
+                if (rows[index] == entry) {
+                    rows[index] = null;
+                    used--;
+                }
+            }
+        }
+    }
+
+    private static synchronized int place(Entry[] row) {
+        if (row.length == 0)
+            return 0;
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        for (Entry entry : row) {
+            min = Math.min(min, entry.selector.id());
+            max = Math.max(max, entry.selector.id());
+        }
+        int displacement = -min;
+        while (!fits(row, displacement))
+            displacement++;
+        ensureCapacity(displacement + max + 1);
+        for (Entry entry : row)
+            rows[displacement + entry.selector.id()] = entry;
+        used += row.length;
+        return displacement;
+    }
+
+    private static boolean fits(Entry[] row, int displacement) {
+        for (Entry entry : row) {
+            int index = displacement + entry.selector.id();
+            if (index < rows.length && rows[index] != null)
+                return false;
+        }
+        return true;
+    }
+
+    private static void ensureCapacity(int capacity) {
+        if (capacity <= rows.length)
+            return;
+        Entry[] grown = new Entry[Math.max(capacity, rows.length * 2)];
+        System.arraycopy(rows, 0, grown, 0, rows.length);
+        rows = grown;
+    }
+
+    public static synchronized String size() {
+        return used + "/" + rows.length;
+    }
+}
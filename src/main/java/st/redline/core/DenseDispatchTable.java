@@ -0,0 +1,50 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution. */
+package st.redline.core;
+
+// One slot per Selector id, filled on first use from the class or its superclass table. The version guards against
+// a fill computed before an invalidation being stored after it.
+
+public class DenseDispatchTable extends DispatchTable {
+
+    private volatile Entry[] entries = new Entry[Selector.count()];
+    private int version;
+
+    public Entry lookup(PrimClass cls, Selector selector) {
+        int id = selector.id();
+        Entry[] current = entries;
+        if (id < current.length) {
+            Entry entry = current[id];
+            if (entry != null)
+                return hit(entry);
+        }
+        int expected = version();
+        Entry entry = fill(cls, selector);
+        store(id, entry, expected);
+        return entry;
+    }
+
+    private synchronized int version() {
+        return version;
+    }
+
+    private synchronized void store(int id, Entry entry, int expected) {
+        if (version != expected)
+            return;
+        Entry[] current = entries;
+        if (id >= current.length) {
+            Entry[] grown = new Entry[Math.max(id + 1, Selector.count())];
+            System.arraycopy(current, 0, grown, 0, current.length);
+            current = grown;
+        }
+        current[id] = entry;
+        entries = current;
+    }
+
+    public synchronized boolean invalidate(Selector selector) {
+        version++;
+        Entry[] current = entries;
+        if (selector.id() < current.length)
+            current[selector.id()] = null;
+        return true;
+    }
+}
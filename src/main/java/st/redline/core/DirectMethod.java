@@ -0,0 +1,29 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution. */
+package st.redline.core;
+
+import java.lang.invoke.*;
+
+// A method compiled without a PrimContext, taking thiz, receiver and the arguments as parameters.
+
+public class DirectMethod implements LambdaBlock {
+
+    private final LambdaBlock lambdaBlock;
+    private final MethodHandle entry;
+
+    public DirectMethod(LambdaBlock lambdaBlock, MethodHandle entry) {
+        this.lambdaBlock = lambdaBlock;
+        this.entry = entry;
+    }
+
+    public PrimObject apply(PrimObject thiz, PrimObject receiver, PrimContext context) {
+        return lambdaBlock.apply(thiz, receiver, context);
+    }
+
+    public MethodHandle entry() {
+        return entry;
+    }
+
+    public int argumentCount() {
+        return entry.type().parameterCount() - 2;
+    }
+}
@@ -0,0 +1,90 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution. */
+package st.redline.core;
+
+import java.util.concurrent.atomic.*;
+
+// The flattened method dispatch of a PrimClass, indexed by Selector id and including inherited methods. Tables
+// built above COMPRESSED_SELECTOR_THRESHOLD interned selectors are compressed.
+
+public abstract class DispatchTable {
+
+    public static final int COMPRESSED_SELECTOR_THRESHOLD = Integer.getInteger("st.redline.dispatch.compressedThreshold", 4096);
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong fills = new AtomicLong();
+    private static final AtomicLong builds = new AtomicLong();
+
+    public static DispatchTable build(PrimClass cls) {
+        builds.incrementAndGet();
+        if (Selector.count() > COMPRESSED_SELECTOR_THRESHOLD)
+            return new CompressedDispatchTable(cls);
+        return new DenseDispatchTable();
+    }
+
+    public abstract Entry lookup(PrimClass cls, Selector selector);
+
+    // Answer false when the table can no longer be used and the class must build a new one.
+    public abstract boolean invalidate(Selector selector);
+
+    public void release() {
+        // Subclass should override.
+    }
+
+    protected Entry hit(Entry entry) {
+        hits.incrementAndGet();
+        return entry;
+    }
+
+    protected Entry fill(PrimClass cls, Selector selector) {
+        fills.incrementAndGet();
+        return cls.lookupInHierarchy(selector);
+    }
+
+    public static long hits() {
+        return hits.get();
+    }
+
+    // Every lookup that is not a hit fills the table from the hierarchy, so the fills are the misses.
+    public static long misses() {
+        return fills.get();
+    }
+
+    public static long fills() {
+        return fills.get();
+    }
+
+    public static long builds() {
+        return builds.get();
+    }
+
+    public static String statistics() {
+        return "DispatchTable builds: " + builds.get() + " hits: " + hits.get() + " misses: " + fills.get() + " compressed slots: " + CompressedDispatchTable.size();
+    }
+
+    public static class Entry {
+
+        final PrimObject cls;
+        final Selector selector;
+        final PrimObject method;
+        final PrimObject foundInClass;
+
+        Entry(PrimObject cls, Selector selector, PrimObject method, PrimObject foundInClass) {
+            this.cls = cls;
+            this.selector = selector;
+            this.method = method;
+            this.foundInClass = foundInClass;
+        }
+
+        public Selector selector() {
+            return selector;
+        }
+
+        public PrimObject method() {
+            return method;
+        }
+
+        public PrimObject foundInClass() {
+            return foundInClass;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution. */
+package st.redline.core;
+
+import st.redline.classloader.SmalltalkClassLoader;
+
+import java.lang.invoke.*;
+import java.math.BigInteger;
+
+import static java.lang.invoke.MethodType.methodType;
+
+// The invokedynamic call site of a literal, linked to the literal's object as a constant on first evaluation.
+
+public class LiteralSite extends MutableCallSite {
+
+    private static final MethodHandle CREATE;
+    static {
+        try {
+            CREATE = MethodHandles.lookup().findVirtual(LiteralSite.class, "create", methodType(PrimObject.class, PrimObject.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final String kind;
+    private final Object value;
+
+    public static CallSite bootstrap(MethodHandles.Lookup lookup, String name, MethodType type, Object value) {
+        return new LiteralSite(type, name, value);
+    }
+
+    public static CallSite bootstrapConstant(MethodHandles.Lookup lookup, String name, MethodType type) {
+        SmalltalkClassLoader runtime = SmalltalkClassLoader.runtime();
+        PrimObject constant;
+        switch (name) {
+            case "nil": constant = runtime.nilInstance(); break;
+            case "true": constant = runtime.trueInstance(); break;
+            case "false": constant = runtime.falseInstance(); break;
+            default: throw new IllegalStateException("Unknown constant '" + name + "'.");
+        }
+        return new ConstantCallSite(MethodHandles.constant(PrimObject.class, constant).asType(type));
+    }
+
+    public LiteralSite(MethodType type, String kind, Object value) {
+        super(type);
+        this.kind = kind;
+        this.value = value;
+        setTarget(CREATE.bindTo(this).asType(type));
+    }
+
+    private PrimObject create(PrimObject receiver) {
+        PrimObject literal = literal(receiver);
+        if (!receiver.isBootstrapping())
+            setTarget(MethodHandles.dropArguments(MethodHandles.constant(PrimObject.class, literal), 0, PrimObject.class).asType(type()));
+        return literal;
+    }
+
+    private PrimObject literal(PrimObject receiver) {
+        switch (kind) {
+            case "number":
+                if (value instanceof Long)
+                    return receiver.smalltalkInteger((Long) value);
+                if (value instanceof String)
+                    return receiver.smalltalkInteger(new BigInteger((String) value));
+                return receiver.smalltalkFloat((Double) value);
+            case "string": return receiver.smalltalkString(value);
+            case "symbol": return receiver.smalltalkSymbol(value);
+            case "character": return receiver.smalltalkCharacter((char) (int) (Integer) value);
+        }
+        throw new IllegalStateException("Unknown literal kind '" + kind + "'.");
+    }
+}
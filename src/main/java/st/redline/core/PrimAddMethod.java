@@ -4,10 +4,10 @@ package st.redline.core;
 public class PrimAddMethod extends PrimObject {
 
     protected PrimObject invoke(PrimObject receiver, PrimContext context) {
-        String selector = selector(context);
+        Selector selector = selector(context);
         PrimObject method = method(context);
         if (!(method instanceof PrimMethod)) {
-            PrimMethod newMethod = new PrimMethod((LambdaBlock) method.javaValue());
+            PrimMethod newMethod = new PrimMethod(method instanceof PrimBlock ? ((PrimBlock) method).lambdaBlock() : (LambdaBlock) method.javaValue());
             newMethod.selfClass(method.selfClass());
             method = newMethod;
         }
@@ -15,8 +15,8 @@ public class PrimAddMethod extends PrimObject {
         return receiver;
     }
 
-    private String selector(PrimContext context) {
-        return String.valueOf(context.argumentJavaValueAt(0));
+    private Selector selector(PrimContext context) {
+        return Selector.named(((PrimString) context.argumentAt(0)).value());
     }
 
     private PrimObject method(PrimContext context) {
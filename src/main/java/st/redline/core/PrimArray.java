@@ -0,0 +1,33 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution. */
+package st.redline.core;
+
+import java.util.Arrays;
+
+// An Array or other object with indexed object pointers, held in a PrimObject[] filled with nil.
+
+public class PrimArray extends PrimIndexedObject {
+
+    private final PrimObject[] elements;
+
+    public PrimArray(int size, PrimObject nil) {
+        this.elements = new PrimObject[size];
+        Arrays.fill(elements, nil);
+    }
+
+    PrimObject[] elements() {
+        return elements;
+    }
+
+    public int size() {
+        return elements.length;
+    }
+
+    protected PrimObject at(int index) {
+        return elements[index];
+    }
+
+    protected boolean atPut(int index, PrimObject value) {
+        elements[index] = value;
+        return true;
+    }
+}
@@ -0,0 +1,52 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution. */
+package st.redline.core;
+
+// A BlockClosure, holding the LambdaBlock it evaluates. The static value methods evaluate a block from Java,
+// calling the LambdaBlock directly when it is one and sending value otherwise.
+
+public class PrimBlock extends PrimObject {
+
+    private static final Selector VALUE = Selector.named("value");
+    private static final Selector VALUE_ = Selector.named("value:");
+    private static final Selector VALUE_VALUE_ = Selector.named("value:value:");
+
+    private final LambdaBlock lambdaBlock;
+
+    public PrimBlock(LambdaBlock lambdaBlock) {
+        this.lambdaBlock = lambdaBlock;
+    }
+
+    public LambdaBlock lambdaBlock() {
+        return lambdaBlock;
+    }
+
+    public Object javaValue() {
+        return lambdaBlock;
+    }
+
+    public String toString() {
+        return lambdaBlock.toString();
+    }
+
+    public PrimObject primitiveEval(PrimContext context) {
+        return lambdaBlock.apply(this, this, context);
+    }
+
+    public static PrimObject value(PrimObject block) {
+        if (block instanceof PrimBlock)
+            return ((PrimBlock) block).lambdaBlock.apply(block, block, new PrimContext(block, block.selfClass(), VALUE));
+        return block.perform(VALUE);
+    }
+
+    public static PrimObject value(PrimObject block, PrimObject argument) {
+        if (block instanceof PrimBlock)
+            return ((PrimBlock) block).lambdaBlock.apply(block, block, new PrimContext(block, block.selfClass(), VALUE_, argument));
+        return block.perform(argument, VALUE_);
+    }
+
+    public static PrimObject value(PrimObject block, PrimObject argument1, PrimObject argument2) {
+        if (block instanceof PrimBlock)
+            return ((PrimBlock) block).lambdaBlock.apply(block, block, new PrimContext(block, block.selfClass(), VALUE_VALUE_, argument1, argument2));
+        return block.perform(argument1, argument2, VALUE_VALUE_);
+    }
+}
@@ -1,15 +1,30 @@
 /* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution. */
 package st.redline.core;
 
+// The unwind of a ^ inside a block back to its home, which catches only the answers carrying its own token.
+
 public class PrimBlockAnswer extends RuntimeException {
 
     private final PrimObject answer;
+    private final PrimCell home;
 
-    public PrimBlockAnswer(PrimObject answer) {
+    public PrimBlockAnswer(PrimObject answer, PrimCell home) {
+        super(null, null, false, false);
         this.answer = answer;
+        this.home = home;
     }
 
     public PrimObject answer() {
         return answer;
     }
+
+    public PrimCell home() {
+        return home;
+    }
+
+    public PrimObject answerFor(PrimCell home) {
+        if (this.home != home)
+            throw this;
+        return answer;
+    }
 }
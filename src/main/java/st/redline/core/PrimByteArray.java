@@ -0,0 +1,29 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution. */
+package st.redline.core;
+
+// A ByteArray, its elements SmallIntegers from 0 to 255 held in a byte[].
+
+public class PrimByteArray extends PrimIndexedObject {
+
+    private final byte[] bytes;
+
+    public PrimByteArray(int size) {
+        this.bytes = new byte[size];
+    }
+
+    public int size() {
+        return bytes.length;
+    }
+
+    protected PrimObject at(int index) {
+        return smalltalkInteger(bytes[index] & 0xFF);
+    }
+
+    protected boolean atPut(int index, PrimObject value) {
+        long integer = smallIntegerValue(value, 0, 0xFF);
+        if (integer < 0)
+            return false;
+        bytes[index] = (byte) integer;
+        return true;
+    }
+}
@@ -0,0 +1,14 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution. */
+package st.redline.core;
+
+// Holds a temporary or argument that a block captures, shared between the scope that declares it and every block
+// that refers to it. Variables no block captures are plain JVM locals.
+
+public class PrimCell {
+
+    public PrimObject value;
+
+    public PrimCell(PrimObject value) {
+        this.value = value;
+    }
+}
@@ -1,14 +1,24 @@
 /* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution. */
 package st.redline.core;
 
+import java.lang.invoke.*;
 import java.util.*;
 
+import static java.lang.invoke.MethodType.methodType;
+
 public class PrimClass extends PrimObject {
 
     private boolean meta;
     private String name;
     private PrimObject superclass;
-    private Map<String, PrimObject> methods = new HashMap<String, PrimObject>();
+    private Map<Selector, PrimObject> methods = new IdentityHashMap<Selector, PrimObject>();
+    private List<PrimClass> subclasses = new ArrayList<PrimClass>();
+    private volatile DispatchTable dispatchTable;
+    private List<String> instanceVariableNames = Collections.emptyList();
+    private Class<? extends PrimObject> instanceClass;
+    private MethodHandle instanceConstructor;
+    private MethodHandle[] instanceVariableGetters;
+    private MethodHandle[] instanceVariableSetters;
 
     public PrimClass() {
         this("", false);
@@ -37,16 +47,41 @@ public class PrimClass extends PrimObject {
         return meta;
     }
 
-    public boolean includesSelector(String selector) {
+    public boolean includesSelector(Selector selector) {
         return methods.containsKey(selector);
     }
 
-    public PrimObject methodFor(String selector) {
+    public PrimObject methodFor(Selector selector) {
         return methods.get(selector);
     }
 
+    Map<Selector, PrimObject> methods() {
+        return methods;
+    }
+
+    protected DispatchTable.Entry lookup(Selector selector) {
+        DispatchTable table = dispatchTable;
+        if (table == null)
+            dispatchTable = table = DispatchTable.build(this);
+        return table.lookup(this, selector);
+    }
+
+    DispatchTable.Entry lookupInHierarchy(Selector selector) {
+        if (includesSelector(selector))
+            return new DispatchTable.Entry(this, selector, methodFor(selector), this);
+        return superclass.lookup(selector);
+    }
+
     public void superclass(PrimObject superclass) {
+        boolean linked = this.superclass != null || !subclasses.isEmpty();
+        if (this.superclass instanceof PrimClass)
+            ((PrimClass) this.superclass).subclasses.remove(this);
         this.superclass = superclass;
+        if (superclass instanceof PrimClass)
+            ((PrimClass) superclass).subclasses.add(this);
+        invalidateDispatch();
+        if (linked)
+            SendSite.invalidateAll();
     }
 
     protected PrimObject superclass() {
@@ -54,6 +89,109 @@ public class PrimClass extends PrimObject {
     }
 
     public void addMethod(String selector, PrimObject method) {
+        addMethod(Selector.named(selector), method);
+    }
+
+    public void addMethod(Selector selector, PrimObject method) {
         methods.put(selector, method);
+        invalidateDispatch(selector);
+        SendSite.invalidate(selector);
+    }
+
+    private void invalidateDispatch(Selector selector) {
+        DispatchTable table = dispatchTable;
+        if (table != null && !table.invalidate(selector))
+            dispatchTable = null;
+        for (PrimClass subclass : subclasses)
+            subclass.invalidateDispatch(selector);
+    }
+
+    private void invalidateDispatch() {
+        DispatchTable table = dispatchTable;
+        if (table != null) {
+            table.release();
+            dispatchTable = null;
+        }
+        for (PrimClass subclass : subclasses)
+            subclass.invalidateDispatch();
+    }
+
+    // Instance layout. A class defined after bootstrapping has instances of its own JVM class, holding its instance
+    // variables, and those of its superclasses, in fields. instVarAt: and instVarAt:put: index them in that order.
+
+    public List<String> instanceVariableNames() {
+        return instanceVariableNames;
+    }
+
+    public Class<? extends PrimObject> instanceClass() {
+        return instanceClass != null ? instanceClass : PrimObject.class;
+    }
+
+    public void instanceLayout(List<String> instanceVariableNames, Class<? extends PrimObject> instanceClass) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            MethodHandle[] getters = new MethodHandle[instanceVariableNames.size()];
+            MethodHandle[] setters = new MethodHandle[instanceVariableNames.size()];
+            for (int i = 0; i < getters.length; i++) {
+                String name = instanceVariableNames.get(i);
+                getters[i] = lookup.findGetter(instanceClass, name, PrimObject.class).asType(methodType(PrimObject.class, PrimObject.class));
+                setters[i] = lookup.findSetter(instanceClass, name, PrimObject.class).asType(methodType(void.class, PrimObject.class, PrimObject.class));
+            }
+            this.instanceConstructor = lookup.findConstructor(instanceClass, methodType(void.class)).asType(methodType(PrimObject.class));
+            this.instanceVariableGetters = getters;
+            this.instanceVariableSetters = setters;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Instance class of '" + name + "' is not accessible.", e);
+        }
+        this.instanceVariableNames = Collections.unmodifiableList(new ArrayList<String>(instanceVariableNames));
+        this.instanceClass = instanceClass;
+    }
+
+    public PrimObject primitiveNew() {
+        if (instanceConstructor == null)
+            return super.primitiveNew();
+        PrimObject object;
+        try {
+            object = (PrimObject) instanceConstructor.invokeExact();
+        } catch (Throwable e) {
+            throw rethrown(e);
+        }
+        object.selfClass(this);
+        return object;
+    }
+
+    public PrimObject primitive71(PrimContext context) {
+        if (!instanceVariableNames.isEmpty())
+            return error("'" + name + "' has instance variables, so cannot have indexed ones.");
+        return super.primitive71(context);
+    }
+
+    PrimObject instVarAt(PrimObject instance, int index) {
+        try {
+            return (PrimObject) instanceVariableGetters[index].invokeExact(instance);
+        } catch (Throwable e) {
+            throw rethrown(e);
+        }
+    }
+
+    void instVarAtPut(PrimObject instance, int index, PrimObject value) {
+        try {
+            instanceVariableSetters[index].invokeExact(instance, value);
+        } catch (Throwable e) {
+            throw rethrown(e);
+        }
+    }
+
+    int instVarCountOf(PrimObject instance) {
+        // Instances made by primitives of their own, such as collections, hold no instance variables.
+        return instanceClass != null && instanceClass.isInstance(instance) ? instanceVariableNames.size() : 0;
+    }
+
+    private static RuntimeException rethrown(Throwable e) {
+        if (e instanceof RuntimeException)
+            return (RuntimeException) e;
+        if (e instanceof Error)
+            throw (Error) e;
+        return new RuntimeException(e);
     }
 }
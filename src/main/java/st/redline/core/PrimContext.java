@@ -1,80 +1,97 @@
 /* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution. */
 package st.redline.core;
 
-import st.redline.classloader.*;
+// Sends of up to MAX_FIELD_ARGUMENTS arguments keep them in fields, so the common activations allocate no
+// arguments array. Longer sends pass an array.
 
 public class PrimContext {
 
+    public static final int MAX_FIELD_ARGUMENTS = 3;
+
     private final PrimObject receiver;
     private final PrimObject lookupClass;
-    private final String selector;
-    private final PrimObject[] arguments;
-    private PrimObject[] temporaries;
+    private final Selector selector;
+    private final int argumentCount;
+    private final PrimObject argument1;
+    private final PrimObject argument2;
+    private final PrimObject argument3;
+    private PrimObject[] arguments;
 
     public PrimContext(PrimObject receiver) {
-        this(receiver, null, null, null);
+        this(receiver, null, null);
     }
 
-    public PrimContext(PrimObject receiver, PrimObject lookupClass, String selector, PrimObject[] arguments) {
-        this.receiver = receiver;
-        this.lookupClass = lookupClass;
-        this.selector = selector;
-        this.arguments = arguments;
+    public PrimContext(PrimObject receiver, PrimObject lookupClass, Selector selector) {
+        this(receiver, lookupClass, selector, 0, null, null, null, null);
     }
 
-    public PrimObject receiver() {
-        return receiver;
+    public PrimContext(PrimObject receiver, PrimObject lookupClass, Selector selector, PrimObject argument1) {
+        this(receiver, lookupClass, selector, 1, argument1, null, null, null);
     }
 
-    public String selector() {
-        return selector;
+    public PrimContext(PrimObject receiver, PrimObject lookupClass, Selector selector, PrimObject argument1, PrimObject argument2) {
+        this(receiver, lookupClass, selector, 2, argument1, argument2, null, null);
     }
 
-    public PrimObject[] arguments() {
-        return arguments;
+    public PrimContext(PrimObject receiver, PrimObject lookupClass, Selector selector, PrimObject argument1, PrimObject argument2, PrimObject argument3) {
+        this(receiver, lookupClass, selector, 3, argument1, argument2, argument3, null);
     }
 
-    public void initTemporaries(int count) {
-        temporaries = new PrimObject[count];
-        PrimObject nil = nil();
-        for (int i = 0; i < count; i++)
-            temporaries[i] = nil;
+    public PrimContext(PrimObject receiver, PrimObject lookupClass, Selector selector, PrimObject[] arguments) {
+        this(receiver, lookupClass, selector, arguments.length, null, null, null, arguments);
     }
 
-    private PrimObject nil() {
-        return classLoader().nilInstance();
+    private PrimContext(PrimObject receiver, PrimObject lookupClass, Selector selector, int argumentCount,
+                        PrimObject argument1, PrimObject argument2, PrimObject argument3, PrimObject[] arguments) {
+        this.receiver = receiver;
+        this.lookupClass = lookupClass;
+        this.selector = selector;
+        this.argumentCount = argumentCount;
+        this.argument1 = argument1;
+        this.argument2 = argument2;
+        this.argument3 = argument3;
+        this.arguments = arguments;
     }
 
-    private SmalltalkClassLoader classLoader() {
-        return (SmalltalkClassLoader) Thread.currentThread().getContextClassLoader();
+    public PrimObject receiver() {
+        return receiver;
     }
 
-    public PrimObject[] selectorAndArguments() {
-        PrimObject selectorObject = new PrimObject();
-        selectorObject.javaValue(selector);
-        PrimObject[] selectorAndArguments = new PrimObject[arguments.length + 1];
-        selectorAndArguments[0] = selectorObject;
-        System.arraycopy(arguments, 0, selectorAndArguments, 1, arguments.length);
-        return selectorAndArguments;
+    public Selector selector() {
+        return selector;
     }
 
-    public PrimObject argumentAt(int index) {
-        return arguments[index];
+    public PrimObject lookupClass() {
+        return lookupClass;
     }
 
-    public Object argumentJavaValueAt(int index) {
-        return argumentAt(index).javaValue();
+    public int argumentCount() {
+        return argumentCount;
     }
 
-    public PrimObject temporaryAt(int index) {
-        return temporaries[index];
+    public PrimObject[] arguments() {
+        if (arguments == null) {
+            PrimObject[] copy = new PrimObject[argumentCount];
+            for (int i = 0; i < argumentCount; i++)
+                copy[i] = argumentAt(i);
+            arguments = copy;
+        }
+        return arguments;
     }
 
-    public void temporaryAtPut(int index, PrimObject object) {
-        temporaries[index] = object;
+    public PrimObject argumentAt(int index) {
+        if (arguments != null)
+            return arguments[index];
+        if (index < argumentCount)
+            switch (index) {
+                case 0: return argument1;
+                case 1: return argument2;
+                case 2: return argument3;
+            }
+        throw new ArrayIndexOutOfBoundsException(index);
     }
 
-    public static void temporaryPutAt(PrimObject object, int index, PrimContext context) {
-        context.temporaryAtPut(index, object);
+    public Object argumentJavaValueAt(int index) {
+        return argumentAt(index).javaValue();
     }
 }
@@ -3,23 +3,32 @@ package st.redline.core;
 
 import static st.redline.core.PrimNil.PRIM_NIL;
 
+// Invoked for a selector the receiver's class does not understand, handing a Message to any primDoesNotUnderstand:.
+
 public class PrimDoesNotUnderstand extends PrimObject {
 
     public static final PrimObject PRIM_DOES_NOT_UNDERSTAND = new PrimDoesNotUnderstand();
 
     protected PrimObject invoke(PrimObject receiver, PrimContext context) {
-        if (!"primDoesNotUnderstand:".equals(context.selector()))
-            return receiver.perform0("primDoesNotUnderstand:", context.selectorAndArguments());
-        outputDoesNotUnderstandError(receiver, context);
-        return PRIM_NIL;
+        if (context.selector() == Selector.PRIM_DOES_NOT_UNDERSTAND) {
+            outputDoesNotUnderstandError(receiver, context.argumentAt(0));
+            return PRIM_NIL;
+        }
+        DispatchTable.Entry handler = receiver.selfClass().lookup(Selector.PRIM_DOES_NOT_UNDERSTAND);
+        if (handler.method() == PRIM_DOES_NOT_UNDERSTAND) {
+            outputDoesNotUnderstandError(receiver, context.selector().name());
+            return PRIM_NIL;
+        }
+        PrimContext handlerContext = new PrimContext(receiver, handler.foundInClass(), Selector.PRIM_DOES_NOT_UNDERSTAND, receiver.instanceOfClass("Message", new PrimMessage(context)));
+        return handler.method().invoke(receiver, handlerContext);
     }
 
-    private void outputDoesNotUnderstandError(PrimObject receiver, PrimContext context) {
+    private void outputDoesNotUnderstandError(PrimObject receiver, Object selector) {
         StringBuilder message = new StringBuilder();
         message.append("Object '")
                 .append(receiver)
                 .append("' does not understand #")
-                .append(context.arguments()[0]);
+                .append(selector);
 //        if (context.arguments.length > 1) {
 //            message.append(" with arguments:\n");
 //            for (int i = 1; i < context.arguments.length; i++)
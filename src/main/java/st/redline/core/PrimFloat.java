@@ -0,0 +1,25 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution. */
+package st.redline.core;
+
+// A Float, its value held unboxed. javaValue() answers a Double for code that still reads values generically.
+
+public class PrimFloat extends PrimObject {
+
+    private final double value;
+
+    public PrimFloat(double value) {
+        this.value = value;
+    }
+
+    public double value() {
+        return value;
+    }
+
+    public Object javaValue() {
+        return value;
+    }
+
+    public String toString() {
+        return Double.toString(value);
+    }
+}
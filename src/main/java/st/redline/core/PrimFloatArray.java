@@ -0,0 +1,31 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution. */
+package st.redline.core;
+
+// A FloatArray, its elements Floats held in a double[]. Storing a SmallInteger stores it as a Float.
+
+public class PrimFloatArray extends PrimIndexedObject {
+
+    private final double[] doubles;
+
+    public PrimFloatArray(int size) {
+        this.doubles = new double[size];
+    }
+
+    public int size() {
+        return doubles.length;
+    }
+
+    protected PrimObject at(int index) {
+        return smalltalkFloat(doubles[index]);
+    }
+
+    protected boolean atPut(int index, PrimObject value) {
+        if (value instanceof PrimFloat)
+            doubles[index] = ((PrimFloat) value).value();
+        else if (value instanceof PrimSmallInteger)
+            doubles[index] = ((PrimSmallInteger) value).value();
+        else
+            return false;
+        return true;
+    }
+}
@@ -0,0 +1,330 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution. */
+package st.redline.core;
+
+import st.redline.classloader.SmalltalkClassLoader;
+
+// A Set, Bag or Dictionary held in an open addressing hash table with linear probing. A Bag keeps the occurrences
+// of each element as its value.
+
+public class PrimHashedCollection extends PrimObject {
+
+    private static final int INITIAL_CAPACITY = 8;
+    private static final Selector HASH = Selector.named("hash");
+    private static final Selector EQUALS = Selector.named("=");
+
+    private final boolean identity;
+    private final boolean bag;
+    private PrimObject[] keys;
+    private PrimObject[] values;
+    private int[] hashes;
+    private int size;
+    private long tally;
+
+    PrimHashedCollection(boolean identity, boolean keyed, boolean bag) {
+        this.identity = identity;
+        this.bag = bag;
+        this.keys = new PrimObject[INITIAL_CAPACITY];
+        this.hashes = new int[INITIAL_CAPACITY];
+        this.values = keyed || bag ? new PrimObject[INITIAL_CAPACITY] : null;
+    }
+
+    private int hashOf(PrimObject key) {
+        if (identity)
+            return System.identityHashCode(key);
+        if (key instanceof PrimString)
+            return ((PrimString) key).value().hashCode();
+        if (key instanceof PrimSmallInteger)
+            return Long.hashCode(((PrimSmallInteger) key).value());
+        if (key instanceof PrimLargeInteger)
+            return ((PrimLargeInteger) key).value().hashCode();
+        PrimObject hash = key.perform(HASH);
+        if (hash instanceof PrimSmallInteger)
+            return Long.hashCode(((PrimSmallInteger) hash).value());
+        return System.identityHashCode(hash);
+    }
+
+    private boolean matches(PrimObject stored, PrimObject key) {
+        if (stored == key)
+            return true;
+        if (identity)
+            return false;
+        if (stored instanceof PrimString && key instanceof PrimString)
+            return stored.getClass() == key.getClass() && ((PrimString) stored).value().equals(((PrimString) key).value());
+        if (stored instanceof PrimSmallInteger && key instanceof PrimSmallInteger)
+            return ((PrimSmallInteger) stored).value() == ((PrimSmallInteger) key).value();
+        if (stored instanceof PrimLargeInteger && key instanceof PrimLargeInteger)
+            return ((PrimLargeInteger) stored).value().equals(((PrimLargeInteger) key).value());
+        return key.perform(stored, EQUALS) == SmalltalkClassLoader.runtime().trueInstance();
+    }
+
+    private int indexFor(int hash, int mask) {
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    private int find(PrimObject key) {
+        // The slot holding the key, or -1.
+        PrimObject[] keys = this.keys;
+        int mask = keys.length - 1;
+        int hash = hashOf(key);
+        for (int i = indexFor(hash, mask); keys[i] != null; i = (i + 1) & mask)
+            if (hashes[i] == hash && matches(keys[i], key))
+                return i;
+        return -1;
+    }
+
+    private int insert(PrimObject key) {
+        // The slot of the key, claiming an empty one if it is not present.
+        int mask = keys.length - 1;
+        int hash = hashOf(key);
+        int i = indexFor(hash, mask);
+        for (; keys[i] != null; i = (i + 1) & mask)
+            if (hashes[i] == hash && matches(keys[i], key))
+                return i;
+        if ((size + 1) * 4 > keys.length * 3) {
+            grow();
+            mask = keys.length - 1;
+            for (i = indexFor(hash, mask); keys[i] != null; i = (i + 1) & mask)
+                ;
+        }
+        keys[i] = key;
+        hashes[i] = hash;
+        size++;
+        return i;
+    }
+
+    private void grow() {
+        PrimObject[] oldKeys = keys;
+        PrimObject[] oldValues = values;
+        int[] oldHashes = hashes;
+        keys = new PrimObject[oldKeys.length * 2];
+        values = oldValues != null ? new PrimObject[oldKeys.length * 2] : null;
+        hashes = new int[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] == null)
+                continue;
+            int i = indexFor(oldHashes[j], mask);
+            while (keys[i] != null)
+                i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            hashes[i] = oldHashes[j];
+            if (values != null)
+                values[i] = oldValues[j];
+        }
+    }
+
+    private void removeAt(int i) {
+        // Shift the entries that follow in the cluster back, so probes never meet a hole before their key.
+        int mask = keys.length - 1;
+        keys[i] = null;
+        if (values != null)
+            values[i] = null;
+        size--;
+        for (int j = (i + 1) & mask; keys[j] != null; j = (j + 1) & mask) {
+            int home = indexFor(hashes[j], mask);
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                hashes[i] = hashes[j];
+                keys[j] = null;
+                if (values != null) {
+                    values[i] = values[j];
+                    values[j] = null;
+                }
+                i = j;
+            }
+        }
+    }
+
+    private long occurrencesAt(int i) {
+        return i < 0 || values[i] == null ? 0 : ((PrimSmallInteger) values[i]).value();
+    }
+
+    private PrimObject addOccurrences(PrimObject element, long occurrences) {
+        int i = insert(element);
+        values[i] = smalltalkInteger(occurrencesAt(i) + occurrences);
+        tally += occurrences;
+        return element;
+    }
+
+    private static PrimHashedCollection table(PrimObject receiver) {
+        return (PrimHashedCollection) receiver;
+    }
+
+    private static PrimObject newOn(PrimObject cls, boolean identity, boolean keyed, boolean bag) {
+        PrimHashedCollection collection = new PrimHashedCollection(identity, keyed, bag);
+        collection.selfClass(cls);
+        return collection;
+    }
+
+    private static PrimObject booleanFor(boolean value) {
+        SmalltalkClassLoader runtime = SmalltalkClassLoader.runtime();
+        return value ? runtime.trueInstance() : runtime.falseInstance();
+    }
+
+    // Instance creation, sent to the class.
+
+    public static PrimObject newSet(PrimObject receiver, PrimContext context) {
+        return newOn(receiver, false, false, false);
+    }
+
+    public static PrimObject newIdentitySet(PrimObject receiver, PrimContext context) {
+        return newOn(receiver, true, false, false);
+    }
+
+    public static PrimObject newBag(PrimObject receiver, PrimContext context) {
+        return newOn(receiver, false, false, true);
+    }
+
+    public static PrimObject newDictionary(PrimObject receiver, PrimContext context) {
+        return newOn(receiver, false, true, false);
+    }
+
+    public static PrimObject newIdentityDictionary(PrimObject receiver, PrimContext context) {
+        return newOn(receiver, true, true, false);
+    }
+
+    // Accessing.
+
+    public static PrimObject size(PrimObject receiver, PrimContext context) {
+        PrimHashedCollection table = table(receiver);
+        return receiver.smalltalkInteger(table.bag ? table.tally : table.size);
+    }
+
+    public static PrimObject atIfAbsent(PrimObject receiver, PrimContext context) {
+        PrimHashedCollection table = table(receiver);
+        int i = table.find(context.argumentAt(0));
+        if (i < 0)
+            return PrimBlock.value(context.argumentAt(1));
+        return table.values[i];
+    }
+
+    public static PrimObject atPut(PrimObject receiver, PrimContext context) {
+        PrimHashedCollection table = table(receiver);
+        PrimObject value = context.argumentAt(1);
+        table.values[table.insert(context.argumentAt(0))] = value;
+        return value;
+    }
+
+    public static PrimObject add(PrimObject receiver, PrimContext context) {
+        PrimHashedCollection table = table(receiver);
+        PrimObject element = context.argumentAt(0);
+        if (table.bag)
+            return table.addOccurrences(element, 1);
+        table.insert(element);
+        return element;
+    }
+
+    public static PrimObject addWithOccurrences(PrimObject receiver, PrimContext context) {
+        return table(receiver).addOccurrences(context.argumentAt(0), ((PrimSmallInteger) context.argumentAt(1)).value());
+    }
+
+    public static PrimObject occurrencesOf(PrimObject receiver, PrimContext context) {
+        PrimHashedCollection table = table(receiver);
+        int i = table.find(context.argumentAt(0));
+        if (table.bag)
+            return receiver.smalltalkInteger(table.occurrencesAt(i));
+        return receiver.smalltalkInteger(i < 0 ? 0 : 1);
+    }
+
+    // Testing.
+
+    public static PrimObject includes(PrimObject receiver, PrimContext context) {
+        return booleanFor(table(receiver).find(context.argumentAt(0)) >= 0);
+    }
+
+    // Removing.
+
+    public static PrimObject removeIfAbsent(PrimObject receiver, PrimContext context) {
+        // remove:ifAbsent: and removeKey:ifAbsent:, answering the element or the value removed.
+        PrimHashedCollection table = table(receiver);
+        PrimObject key = context.argumentAt(0);
+        int i = table.find(key);
+        if (i < 0)
+            return PrimBlock.value(context.argumentAt(1));
+        if (table.bag) {
+            long occurrences = table.occurrencesAt(i);
+            table.tally--;
+            if (occurrences > 1) {
+                table.values[i] = receiver.smalltalkInteger(occurrences - 1);
+                return key;
+            }
+            table.removeAt(i);
+            return key;
+        }
+        PrimObject removed = table.values != null ? table.values[i] : key;
+        table.removeAt(i);
+        return removed;
+    }
+
+    // Enumerating. The arrays are read once, so the block may change the collection without upsetting the loop.
+
+    public static PrimObject keysDo(PrimObject receiver, PrimContext context) {
+        PrimHashedCollection table = table(receiver);
+        PrimObject block = context.argumentAt(0);
+        PrimObject[] keys = table.keys;
+        PrimObject[] values = table.values;
+        for (int i = 0; i < keys.length; i++)
+            if (keys[i] != null) {
+                long occurrences = table.bag ? ((PrimSmallInteger) values[i]).value() : 1;
+                for (long n = 0; n < occurrences; n++)
+                    PrimBlock.value(block, keys[i]);
+            }
+        return receiver;
+    }
+
+    public static PrimObject valuesDo(PrimObject receiver, PrimContext context) {
+        PrimObject block = context.argumentAt(0);
+        PrimObject[] keys = table(receiver).keys;
+        PrimObject[] values = table(receiver).values;
+        for (int i = 0; i < keys.length; i++)
+            if (keys[i] != null)
+                PrimBlock.value(block, values[i]);
+        return receiver;
+    }
+
+    public static PrimObject keysAndValuesDo(PrimObject receiver, PrimContext context) {
+        PrimObject block = context.argumentAt(0);
+        PrimObject[] keys = table(receiver).keys;
+        PrimObject[] values = table(receiver).values;
+        for (int i = 0; i < keys.length; i++)
+            if (keys[i] != null)
+                PrimBlock.value(block, keys[i], values[i]);
+        return receiver;
+    }
+
+    public static PrimObject keys(PrimObject receiver, PrimContext context) {
+        // A Set of the keys, of the same identity as the receiver.
+        PrimHashedCollection table = table(receiver);
+        PrimHashedCollection keys = new PrimHashedCollection(table.identity, false, false);
+        keys.selfClass(receiver.resolveObject(table.identity ? "IdentitySet" : "Set"));
+        for (PrimObject key : table.keys)
+            if (key != null)
+                keys.insert(key);
+        return keys;
+    }
+
+    // The = and hash of Strings, Symbols and Integers, defined here so the tables agree with them.
+
+    public static PrimObject primitiveEqual(PrimObject receiver, PrimContext context) {
+        PrimObject argument = context.argumentAt(0);
+        if (receiver == argument)
+            return booleanFor(true);
+        if (receiver instanceof PrimString && argument instanceof PrimString)
+            return booleanFor(receiver.getClass() == argument.getClass() && ((PrimString) receiver).value().equals(((PrimString) argument).value()));
+        if (receiver instanceof PrimSmallInteger && argument instanceof PrimSmallInteger)
+            return booleanFor(((PrimSmallInteger) receiver).value() == ((PrimSmallInteger) argument).value());
+        if (receiver instanceof PrimLargeInteger && argument instanceof PrimLargeInteger)
+            return booleanFor(((PrimLargeInteger) receiver).value().equals(((PrimLargeInteger) argument).value()));
+        return booleanFor(false);
+    }
+
+    public static PrimObject primitiveHash(PrimObject receiver, PrimContext context) {
+        if (receiver instanceof PrimString)
+            return receiver.smalltalkInteger(((PrimString) receiver).value().hashCode());
+        if (receiver instanceof PrimSmallInteger)
+            return receiver.smalltalkInteger(Long.hashCode(((PrimSmallInteger) receiver).value()));
+        if (receiver instanceof PrimLargeInteger)
+            return receiver.smalltalkInteger(((PrimLargeInteger) receiver).value().hashCode());
+        return receiver.smalltalkInteger(System.identityHashCode(receiver));
+    }
+}
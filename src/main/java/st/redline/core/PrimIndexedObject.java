@@ -0,0 +1,94 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution. */
+package st.redline.core;
+
+// An object with indexed variables, held in a Java array of the type the class stores.
+
+public abstract class PrimIndexedObject extends PrimObject {
+
+    private static final int MAX_SIZE = Integer.MAX_VALUE - 8;
+
+    public abstract int size();
+
+    // The element at the zero based index, which is in bounds.
+    protected abstract PrimObject at(int index);
+
+    // Store the value at the zero based index, which is in bounds, answering false when the store cannot hold it.
+    protected abstract boolean atPut(int index, PrimObject value);
+
+    public PrimObject primitive62(PrimContext context) {
+        return smalltalkInteger(size());
+    }
+
+    public PrimObject primitive143(PrimContext context) {
+        int index = indexIn(context, size());
+        PrimObject value = context.argumentAt(1);
+        if (index < 0)
+            return indexError(context.argumentAt(0));
+        if (!atPut(index, value))
+            return error("Improper store into indexable object.");
+        return value;
+    }
+
+    public PrimObject primitive144(PrimContext context) {
+        int index = indexIn(context, size());
+        if (index < 0)
+            return indexError(context.argumentAt(0));
+        return at(index);
+    }
+
+    static int indexIn(PrimContext context, int size) {
+        // The zero based index of the first argument, or -1 when it is not an index from 1 to size.
+        return (int) smallIntegerValue(context.argumentAt(0), 1, size) - 1;
+    }
+
+    static long smallIntegerValue(PrimObject value, long min, long max) {
+        // The value of a SmallInteger between min and max, or min - 1 when it is anything else.
+        if (value instanceof PrimSmallInteger) {
+            long integer = ((PrimSmallInteger) value).value();
+            if (integer >= min && integer <= max)
+                return integer;
+        }
+        return min - 1;
+    }
+
+    private static int sizeAt(PrimContext context) {
+        // The number of indexed variables asked for, or -1 when the argument is not a valid one.
+        return (int) smallIntegerValue(context.argumentAt(0), 0, MAX_SIZE);
+    }
+
+    private static PrimObject sizeError(PrimObject cls) {
+        return cls.error("The number of indexed variables must be a SmallInteger between 0 and " + MAX_SIZE + ".");
+    }
+
+    private static PrimObject newInstance(PrimObject cls, PrimIndexedObject instance) {
+        instance.selfClass(cls);
+        return instance;
+    }
+
+    // Instance creation, sent to the class.
+
+    public static PrimObject newArray(PrimObject receiver, PrimContext context) {
+        int size = sizeAt(context);
+        return size < 0 ? sizeError(receiver) : newInstance(receiver, new PrimArray(size, receiver.referenceNil()));
+    }
+
+    public static PrimObject newByteArray(PrimObject receiver, PrimContext context) {
+        int size = sizeAt(context);
+        return size < 0 ? sizeError(receiver) : newInstance(receiver, new PrimByteArray(size));
+    }
+
+    public static PrimObject newWordArray(PrimObject receiver, PrimContext context) {
+        int size = sizeAt(context);
+        return size < 0 ? sizeError(receiver) : newInstance(receiver, new PrimWordArray(size));
+    }
+
+    public static PrimObject newLongArray(PrimObject receiver, PrimContext context) {
+        int size = sizeAt(context);
+        return size < 0 ? sizeError(receiver) : newInstance(receiver, new PrimLongArray(size));
+    }
+
+    public static PrimObject newFloatArray(PrimObject receiver, PrimContext context) {
+        int size = sizeAt(context);
+        return size < 0 ? sizeError(receiver) : newInstance(receiver, new PrimFloatArray(size));
+    }
+}
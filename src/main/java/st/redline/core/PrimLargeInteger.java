@@ -0,0 +1,298 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution. */
+package st.redline.core;
+
+import java.math.BigInteger;
+import java.util.function.BinaryOperator;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.IntPredicate;
+import java.util.function.LongBinaryOperator;
+
+// A LargePositiveInteger or LargeNegativeInteger, its value held in a BigInteger. The static entry points are the
+// arithmetic of every Integer, and answer from long values while the operands and answer are SmallIntegers.
+
+public class PrimLargeInteger extends PrimObject {
+
+    private final BigInteger value;
+
+    public PrimLargeInteger(BigInteger value) {
+        this.value = value;
+    }
+
+    public BigInteger value() {
+        return value;
+    }
+
+    public Object javaValue() {
+        return value;
+    }
+
+    public String toString() {
+        return value.toString();
+    }
+
+    static boolean isInteger(PrimObject object) {
+        return object instanceof PrimSmallInteger || object instanceof PrimLargeInteger;
+    }
+
+    static BigInteger bigIntegerValue(PrimObject integer) {
+        if (integer instanceof PrimSmallInteger)
+            return BigInteger.valueOf(((PrimSmallInteger) integer).value());
+        return ((PrimLargeInteger) integer).value;
+    }
+
+    private static boolean isSmall(PrimObject receiver, PrimObject argument) {
+        return receiver instanceof PrimSmallInteger && argument instanceof PrimSmallInteger;
+    }
+
+    private static long longValue(PrimObject integer) {
+        return ((PrimSmallInteger) integer).value();
+    }
+
+    private static double doubleValue(PrimObject integer) {
+        if (integer instanceof PrimSmallInteger)
+            return ((PrimSmallInteger) integer).value();
+        return ((PrimLargeInteger) integer).value.doubleValue();
+    }
+
+    private static boolean isZero(PrimObject number) {
+        return (number instanceof PrimSmallInteger && ((PrimSmallInteger) number).value() == 0)
+            || (number instanceof PrimFloat && ((PrimFloat) number).value() == 0.0);
+    }
+
+    private static long quotient(long a, long b) {
+        return b == -1 ? Math.negateExact(a) : a / b;
+    }
+
+    private static long floorQuotient(long a, long b) {
+        return b == -1 ? Math.negateExact(a) : Math.floorDiv(a, b);
+    }
+
+    private static BigInteger floorDivide(BigInteger a, BigInteger b) {
+        BigInteger[] quotientAndRemainder = a.divideAndRemainder(b);
+        if (quotientAndRemainder[1].signum() != 0 && quotientAndRemainder[1].signum() != b.signum())
+            return quotientAndRemainder[0].subtract(BigInteger.ONE);
+        return quotientAndRemainder[0];
+    }
+
+    private static BigInteger floorModulo(BigInteger a, BigInteger b) {
+        BigInteger remainder = a.remainder(b);
+        if (remainder.signum() != 0 && remainder.signum() != b.signum())
+            return remainder.add(b);
+        return remainder;
+    }
+
+    private static boolean divides(PrimObject divisor, PrimObject dividend) {
+        if (isSmall(dividend, divisor))
+            return longValue(divisor) == -1 || longValue(dividend) % longValue(divisor) == 0;
+        return bigIntegerValue(dividend).remainder(bigIntegerValue(divisor)).signum() == 0;
+    }
+
+    private static long shift(long a, long shift) {
+        // Throws where bits would be lost off the left.
+        if (shift >= 0) {
+            if (shift < Long.SIZE && (a << shift) >> shift == a)
+                return a << shift;
+            if (a == 0)
+                return 0;
+            throw new ArithmeticException("long overflow");
+        }
+        return shift <= -Long.SIZE ? a >> (Long.SIZE - 1) : a >> -shift;
+    }
+
+    private static PrimObject arithmetic(PrimObject receiver, PrimContext context, LongBinaryOperator small, BinaryOperator<BigInteger> large, DoubleBinaryOperator inexact) {
+        // The long operation throws ArithmeticException where its answer is not a SmallInteger.
+        PrimObject argument = context.argumentAt(0);
+        if (isSmall(receiver, argument))
+            try {
+                return receiver.smalltalkInteger(small.applyAsLong(longValue(receiver), longValue(argument)));
+            } catch (ArithmeticException e) {
+                // Answered from BigIntegers below.
+            }
+        if (isInteger(argument))
+            return receiver.smalltalkInteger(large.apply(bigIntegerValue(receiver), bigIntegerValue(argument)));
+        if (argument instanceof PrimFloat)
+            return receiver.smalltalkFloat(inexact.applyAsDouble(doubleValue(receiver), ((PrimFloat) argument).value()));
+        return receiver.error("The argument is not a Number.");
+    }
+
+    private static PrimObject division(PrimObject receiver, PrimContext context, LongBinaryOperator small, BinaryOperator<BigInteger> large, DoubleBinaryOperator inexact) {
+        if (isZero(context.argumentAt(0)))
+            return receiver.error("Attempt to divide by zero.");
+        return arithmetic(receiver, context, small, large, inexact);
+    }
+
+    private static PrimObject bitwise(PrimObject receiver, PrimContext context, LongBinaryOperator small, BinaryOperator<BigInteger> large) {
+        if (!isInteger(context.argumentAt(0)))
+            return receiver.error("The argument is not an Integer.");
+        return arithmetic(receiver, context, small, large, null);
+    }
+
+    private static PrimObject comparison(PrimObject receiver, PrimContext context, IntPredicate test) {
+        // The test is given the sign of the receiver compared with the argument.
+        PrimObject argument = context.argumentAt(0);
+        int sign;
+        if (isSmall(receiver, argument))
+            sign = Long.compare(longValue(receiver), longValue(argument));
+        else if (isInteger(argument))
+            sign = bigIntegerValue(receiver).compareTo(bigIntegerValue(argument));
+        else if (argument instanceof PrimFloat)
+            sign = Double.compare(doubleValue(receiver), ((PrimFloat) argument).value());
+        else
+            return receiver.error("The argument is not a Number.");
+        return test.test(sign) ? receiver.referenceTrue() : receiver.referenceFalse();
+    }
+
+    // Arithmetic.
+
+    public static PrimObject primitiveAdd(PrimObject receiver, PrimContext context) {
+        return arithmetic(receiver, context, Math::addExact, BigInteger::add, (a, b) -> a + b);
+    }
+
+    public static PrimObject primitiveSubtract(PrimObject receiver, PrimContext context) {
+        return arithmetic(receiver, context, Math::subtractExact, BigInteger::subtract, (a, b) -> a - b);
+    }
+
+    public static PrimObject primitiveMultiply(PrimObject receiver, PrimContext context) {
+        return arithmetic(receiver, context, Math::multiplyExact, BigInteger::multiply, (a, b) -> a * b);
+    }
+
+    public static PrimObject primitiveDivide(PrimObject receiver, PrimContext context) {
+        // There being no Fraction, a division with a remainder answers a Float.
+        PrimObject argument = context.argumentAt(0);
+        if (isInteger(argument) && !isZero(argument) && !divides(argument, receiver))
+            return receiver.smalltalkFloat(doubleValue(receiver) / doubleValue(argument));
+        return division(receiver, context, PrimLargeInteger::quotient, BigInteger::divide, (a, b) -> a / b);
+    }
+
+    public static PrimObject primitiveFloorDivide(PrimObject receiver, PrimContext context) {
+        return division(receiver, context, PrimLargeInteger::floorQuotient, PrimLargeInteger::floorDivide, (a, b) -> Math.floor(a / b));
+    }
+
+    public static PrimObject primitiveFloorModulo(PrimObject receiver, PrimContext context) {
+        return division(receiver, context, Math::floorMod, PrimLargeInteger::floorModulo, (a, b) -> a - Math.floor(a / b) * b);
+    }
+
+    // Comparing.
+
+    public static PrimObject primitiveLessThan(PrimObject receiver, PrimContext context) {
+        return comparison(receiver, context, sign -> sign < 0);
+    }
+
+    public static PrimObject primitiveGreaterThan(PrimObject receiver, PrimContext context) {
+        return comparison(receiver, context, sign -> sign > 0);
+    }
+
+    public static PrimObject primitiveLessOrEqual(PrimObject receiver, PrimContext context) {
+        return comparison(receiver, context, sign -> sign <= 0);
+    }
+
+    public static PrimObject primitiveGreaterOrEqual(PrimObject receiver, PrimContext context) {
+        return comparison(receiver, context, sign -> sign >= 0);
+    }
+
+    public static PrimObject primitiveNotEqual(PrimObject receiver, PrimContext context) {
+        // Anything not a Number is not equal.
+        PrimObject argument = context.argumentAt(0);
+        if (!isInteger(argument) && !(argument instanceof PrimFloat))
+            return receiver.referenceTrue();
+        return comparison(receiver, context, sign -> sign != 0);
+    }
+
+    // Bit manipulation, on the two's complement of values of any size.
+
+    public static PrimObject primitiveBitAnd(PrimObject receiver, PrimContext context) {
+        return bitwise(receiver, context, (a, b) -> a & b, BigInteger::and);
+    }
+
+    public static PrimObject primitiveBitOr(PrimObject receiver, PrimContext context) {
+        return bitwise(receiver, context, (a, b) -> a | b, BigInteger::or);
+    }
+
+    public static PrimObject primitiveBitXor(PrimObject receiver, PrimContext context) {
+        return bitwise(receiver, context, (a, b) -> a ^ b, BigInteger::xor);
+    }
+
+    public static PrimObject primitiveBitShift(PrimObject receiver, PrimContext context) {
+        PrimObject argument = context.argumentAt(0);
+        if (!(argument instanceof PrimSmallInteger))
+            return receiver.error("The argument is not a SmallInteger.");
+        long shift = ((PrimSmallInteger) argument).value();
+        if (receiver instanceof PrimSmallInteger)
+            try {
+                return receiver.smalltalkInteger(shift(((PrimSmallInteger) receiver).value(), shift));
+            } catch (ArithmeticException e) {
+                // Too large for a SmallInteger, so done again below.
+            }
+        if (shift > Integer.MAX_VALUE)
+            return receiver.error("The shift is too large.");
+        return receiver.smalltalkInteger(bigIntegerValue(receiver).shiftLeft((int) Math.max(shift, -Integer.MAX_VALUE)));
+    }
+
+    // Integer.
+
+    public static PrimObject primitiveGcd(PrimObject receiver, PrimContext context) {
+        PrimObject argument = context.argumentAt(0);
+        if (!isInteger(argument))
+            return receiver.error("The argument is not an Integer.");
+        if (receiver instanceof PrimSmallInteger && argument instanceof PrimSmallInteger) {
+            long a = ((PrimSmallInteger) receiver).value();
+            long b = ((PrimSmallInteger) argument).value();
+            if (a != Long.MIN_VALUE && b != Long.MIN_VALUE) {
+                a = Math.abs(a);
+                b = Math.abs(b);
+                while (b != 0) {
+                    long remainder = a % b;
+                    a = b;
+                    b = remainder;
+                }
+                return receiver.smalltalkInteger(a);
+            }
+        }
+        return receiver.smalltalkInteger(bigIntegerValue(receiver).gcd(bigIntegerValue(argument)));
+    }
+
+    public static PrimObject primitiveRaisedTo(PrimObject receiver, PrimContext context) {
+        // A negative or Float exponent answers a Float.
+        PrimObject argument = context.argumentAt(0);
+        if (argument instanceof PrimFloat)
+            return receiver.smalltalkFloat(Math.pow(doubleValue(receiver), ((PrimFloat) argument).value()));
+        if (!(argument instanceof PrimSmallInteger))
+            return receiver.error("The argument is not a SmallInteger.");
+        long exponent = ((PrimSmallInteger) argument).value();
+        if (exponent < 0)
+            return receiver.smalltalkFloat(Math.pow(doubleValue(receiver), exponent));
+        if (receiver instanceof PrimSmallInteger)
+            try {
+                return receiver.smalltalkInteger(power(((PrimSmallInteger) receiver).value(), exponent));
+            } catch (ArithmeticException e) {
+                // Too large for a SmallInteger, so done again below.
+            }
+        if (exponent > Integer.MAX_VALUE)
+            return receiver.error("The exponent is too large.");
+        return receiver.smalltalkInteger(bigIntegerValue(receiver).pow((int) exponent));
+    }
+
+    private static long power(long base, long exponent) {
+        // By repeated squaring, throwing where the answer overflows.
+        long result = 1;
+        while (exponent > 0) {
+            if ((exponent & 1) != 0)
+                result = Math.multiplyExact(result, base);
+            exponent >>= 1;
+            if (exponent > 0)
+                base = Math.multiplyExact(base, base);
+        }
+        return result;
+    }
+
+    public static PrimObject primitivePrintStringBase(PrimObject receiver, PrimContext context) {
+        PrimObject argument = context.argumentAt(0);
+        if (!(argument instanceof PrimSmallInteger) || ((PrimSmallInteger) argument).value() < Character.MIN_RADIX
+                || ((PrimSmallInteger) argument).value() > Character.MAX_RADIX)
+            return receiver.error("The base must be from " + Character.MIN_RADIX + " to " + Character.MAX_RADIX + ".");
+        int base = (int) ((PrimSmallInteger) argument).value();
+        if (receiver instanceof PrimSmallInteger)
+            return receiver.smalltalkString(Long.toString(((PrimSmallInteger) receiver).value(), base).toUpperCase());
+        return receiver.smalltalkString(((PrimLargeInteger) receiver).value.toString(base).toUpperCase());
+    }
+}
@@ -0,0 +1,28 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution. */
+package st.redline.core;
+
+// A LongArray, its elements any SmallIntegers held in a long[].
+
+public class PrimLongArray extends PrimIndexedObject {
+
+    private final long[] longs;
+
+    public PrimLongArray(int size) {
+        this.longs = new long[size];
+    }
+
+    public int size() {
+        return longs.length;
+    }
+
+    protected PrimObject at(int index) {
+        return smalltalkInteger(longs[index]);
+    }
+
+    protected boolean atPut(int index, PrimObject value) {
+        if (!(value instanceof PrimSmallInteger))
+            return false;
+        longs[index] = ((PrimSmallInteger) value).value();
+        return true;
+    }
+}
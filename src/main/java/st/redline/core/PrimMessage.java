@@ -0,0 +1,58 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution. */
+package st.redline.core;
+
+// The Message handed to primDoesNotUnderstand:. It wraps the context of the send that was not understood rather
+// than copying its selector and arguments, and is only created when there is a handler to receive it.
+
+public class PrimMessage extends PrimObject {
+
+    private final PrimContext context;
+
+    public PrimMessage(PrimContext context) {
+        this.context = context;
+        this.javaValue(context.selector().name());
+    }
+
+    public Selector selector() {
+        return context.selector();
+    }
+
+    public int argumentCount() {
+        return context.argumentCount();
+    }
+
+    public PrimObject argumentAt(int index) {
+        return context.argumentAt(index);
+    }
+
+    public PrimObject[] arguments() {
+        return context.arguments();
+    }
+
+    public PrimObject forwardTo(PrimObject receiver) {
+        Selector selector = context.selector();
+        switch (context.argumentCount()) {
+            case 0: return receiver.perform(selector);
+            case 1: return receiver.perform(context.argumentAt(0), selector);
+            case 2: return receiver.perform(context.argumentAt(0), context.argumentAt(1), selector);
+            case 3: return receiver.perform(context.argumentAt(0), context.argumentAt(1), context.argumentAt(2), selector);
+        }
+        return receiver.perform(context.arguments(), selector);
+    }
+
+    public static PrimObject primitiveSelector(PrimObject receiver, PrimContext context) {
+        return receiver.smalltalkSymbol(((PrimMessage) receiver).selector().name());
+    }
+
+    public static PrimObject primitiveArguments(PrimObject receiver, PrimContext context) {
+        PrimMessage message = (PrimMessage) receiver;
+        PrimArray arguments = new PrimArray(message.argumentCount(), receiver.referenceNil());
+        for (int i = 0; i < message.argumentCount(); i++)
+            arguments.atPut(i, message.argumentAt(i));
+        return receiver.instanceOfClass("Array", arguments);
+    }
+
+    public static PrimObject primitiveSendTo(PrimObject receiver, PrimContext context) {
+        return ((PrimMessage) receiver).forwardTo(context.argumentAt(0));
+    }
+}
@@ -13,11 +13,11 @@ public class PrimNil extends PrimClass {
         super(name);
     }
 
-    public boolean includesSelector(String selector) {
+    public boolean includesSelector(Selector selector) {
         return true;
     }
 
-    public PrimObject methodFor(String selector) {
+    public PrimObject methodFor(Selector selector) {
         return PRIM_DOES_NOT_UNDERSTAND;
     }
 }
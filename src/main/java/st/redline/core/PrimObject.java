@@ -3,6 +3,10 @@ package st.redline.core;
 
 import st.redline.classloader.*;
 
+import java.lang.invoke.*;
+import java.math.BigInteger;
+
+import static st.redline.classloader.SmalltalkClassLoader.*;
 import static st.redline.compiler.SmalltalkGeneratingVisitor.*;
 import static st.redline.core.PrimDoesNotUnderstand.*;
 import static st.redline.core.PrimSubclass.*;
@@ -13,6 +17,7 @@ public class PrimObject {
     private Object javaValue;
 
     public String toString() {
+        Object javaValue = javaValue();
         if (javaValue != null)
             return javaValue.toString();
         if (selfClass != null && selfClass != this)
@@ -63,29 +68,7 @@ public class PrimObject {
 
     public PrimObject smalltalkBlock(Object value) {
 //        System.out.println("** smalltalkBlock " + value);
-        return instanceOfWith("BlockClosure", value);
-    }
-
-    public PrimObject smalltalkBlockAnswer(Object value, String answerClassName) {
-//        System.out.println("** smalltalkBlockAnswer " + value + " from " + answerClassName);
-        return instanceOfWith("BlockClosure", throwingAnswer(value, answerClassName));
-    }
-
-    private LambdaBlock throwingAnswer(Object value, String answerClassName) {
-        return (self, receiver, context) -> {
-            PrimObject answer = ((LambdaBlock) value).apply(self, receiver, context);
-            PrimBlockAnswer blockAnswer;
-            try {
-                blockAnswer = (PrimBlockAnswer)
-                        classLoader()
-                                .loadClass(answerClassName)
-                                .getConstructor(PrimObject.class)
-                                .newInstance(answer);
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
-            throw blockAnswer;
-        };
+        return instanceOfClass("BlockClosure", new PrimBlock((LambdaBlock) value));
     }
 
     public PrimObject smalltalkMethod(Object value) {
@@ -93,20 +76,60 @@ public class PrimObject {
         return instanceOfWith("CompiledMethod", value);
     }
 
+    public PrimObject smalltalkMethod(Object value, Object entry) {
+        //System.out.println("** smalltalkMethod " + value + " " + entry);
+        return instanceOfWith("CompiledMethod", new DirectMethod((LambdaBlock) value, (MethodHandle) entry));
+    }
+
     public PrimObject smalltalkString(Object value) {
-        return instanceOfWith("String", value);
+        return instanceOfClass("String", new PrimString((String) value));
+    }
+
+    public PrimObject smalltalkInteger(long value) {
+        if (isBootstrapping())
+            return new PrimSmallInteger(value);
+        PrimObject[] smallIntegers = smallIntegers();
+        if (value >= MIN_CACHED_INTEGER && value <= MAX_CACHED_INTEGER)
+            return smallIntegers[(int) value - MIN_CACHED_INTEGER];
+        PrimObject integer = new PrimSmallInteger(value);
+        integer.selfClass(classLoader().smallIntegerClass());
+        return integer;
+    }
+
+    public PrimObject smalltalkInteger(BigInteger value) {
+        // A SmallInteger whenever the value fits in one, so large integers are always beyond SmallInteger range.
+        if (value.bitLength() < Long.SIZE)
+            return smalltalkInteger(value.longValue());
+        return instanceOfClass(value.signum() < 0 ? "LargeNegativeInteger" : "LargePositiveInteger", new PrimLargeInteger(value));
+    }
+
+    private PrimObject[] smallIntegers() {
+        SmalltalkClassLoader smalltalkClassLoader = classLoader();
+        PrimObject[] smallIntegers = smalltalkClassLoader.smallIntegers();
+        if (smallIntegers == null) {
+            PrimObject smallInteger = resolveObject("SmallInteger");
+            smallIntegers = new PrimObject[MAX_CACHED_INTEGER - MIN_CACHED_INTEGER + 1];
+            for (int i = 0; i < smallIntegers.length; i++) {
+                smallIntegers[i] = new PrimSmallInteger(i + MIN_CACHED_INTEGER);
+                smallIntegers[i].selfClass(smallInteger);
+            }
+            smalltalkClassLoader.smallIntegers(smallInteger, smallIntegers);
+        }
+        return smallIntegers;
     }
 
-    public PrimObject smalltalkSymbol(Object value) {
-        return instanceOfWith("Symbol", value);
+    public PrimObject smalltalkFloat(double value) {
+        return instanceOfClass("Float", new PrimFloat(value));
+    }
 
-//        String symbol = (String) javaValue;
-//        SmalltalkClassLoader smalltalkClassLoader = classLoader();
-//        if (smalltalkClassLoader.isInternedSymbol(symbol))
-//            return smalltalkClassLoader.internedSymbolAt(symbol);
-//        PrimObject symbolObject = instanceOfWith("Symbol", symbol);
-//        smalltalkClassLoader.internSymbolAtPut(symbol, symbolObject);
-//        return symbolObject;
+    public PrimObject smalltalkCharacter(char value) {
+        return instanceOfWith("Character", value);
+    }
+
+    public PrimObject smalltalkSymbol(Object value) {
+        if (isBootstrapping())
+            return new PrimSymbol((String) value);
+        return SymbolTable.intern((String) value, this);
     }
 
     protected PrimObject instanceOfWith(String type, Object value) {
@@ -115,8 +138,15 @@ public class PrimObject {
         return instance;
     }
 
+    protected PrimObject instanceOfClass(String type, PrimObject instance) {
+        // A specialized representation is made directly rather than by sending new.
+        if (!isBootstrapping())
+            instance.selfClass(resolveObject(type));
+        return instance;
+    }
+
     protected PrimObject instanceOf(String type) {
-        return isBootstrapping() ? new PrimObject() : resolveObject(type).perform("new");
+        return isBootstrapping() ? new PrimObject() : resolveObject(type).perform(Selector.NEW);
     }
 
     protected boolean isBootstrapping() {
@@ -137,7 +167,7 @@ public class PrimObject {
     }
 
     protected SmalltalkClassLoader classLoader() {
-        return (SmalltalkClassLoader) Thread.currentThread().getContextClassLoader();
+        return SmalltalkClassLoader.runtime();
     }
 
     protected PrimObject sendMessages(PrimObject receiver, PrimContext context) {
@@ -151,81 +181,123 @@ public class PrimObject {
     }
 
     public PrimObject perform(String selector) {
+        return perform(Selector.named(selector));
+    }
+
+    public PrimObject perform(PrimObject arg1, String selector) {
+        return perform(arg1, Selector.named(selector));
+    }
+
+    public PrimObject perform(PrimObject arg1, PrimObject arg2, String selector) {
+        return perform(arg1, arg2, Selector.named(selector));
+    }
+
+    public PrimObject perform(Selector selector) {
 //        System.out.println("** perform(" + selector + ") " + this);
-        return perform0(selector);
+        return send(selfClass, selector);
     }
 
-    public PrimObject superPerform(String selector) {
+    public PrimObject superPerform(Selector selector) {
 //        System.out.println("** superPerform(" + selector + ") " + this);
-        return perform0s(selector);
+        return send(selfClass.superclass(), selector);
     }
 
-    public PrimObject perform(PrimObject arg1, String selector) {
+    public PrimObject perform(PrimObject arg1, Selector selector) {
 //        System.out.println("** perform(" + arg1 + "," + selector + ") " + this);
-        return perform0(selector, arg1);
+        return send(selfClass, selector, arg1);
     }
 
-    public PrimObject superPerform(PrimObject arg1, String selector) {
+    public PrimObject superPerform(PrimObject arg1, Selector selector) {
 //        System.out.println("** superPerform(" + arg1 + "," + selector + ") " + this);
-        return perform0s(selector, arg1);
+        return send(selfClass.superclass(), selector, arg1);
     }
 
-    public PrimObject perform(PrimObject arg1, PrimObject arg2, String selector) {
+    public PrimObject perform(PrimObject arg1, PrimObject arg2, Selector selector) {
         //System.out.println("** perform(" + arg1 + "," + arg2 + "," + selector + ") " + this);
-        return perform0(selector, arg1, arg2);
+        return send(selfClass, selector, arg1, arg2);
     }
 
-    public PrimObject superPerform(PrimObject arg1, PrimObject arg2, String selector) {
+    public PrimObject superPerform(PrimObject arg1, PrimObject arg2, Selector selector) {
         //System.out.println("** superPerform(" + arg1 + "," + arg2 + "," + selector + ") " + this);
-        return perform0s(selector, arg1, arg2);
+        return send(selfClass.superclass(), selector, arg1, arg2);
     }
 
-    public PrimObject perform(PrimObject arg1, PrimObject arg2, PrimObject arg3, String selector) {
+    public PrimObject perform(PrimObject arg1, PrimObject arg2, PrimObject arg3, Selector selector) {
 //        System.out.println("** perform(" + arg1 + "," + arg2 + "," + arg3 + "," + selector + ") " + this);
-        return perform0(selector, arg1, arg2);
+        return send(selfClass, selector, arg1, arg2, arg3);
     }
 
-    public PrimObject superPerform(PrimObject arg1, PrimObject arg2, PrimObject arg3, String selector) {
+    public PrimObject superPerform(PrimObject arg1, PrimObject arg2, PrimObject arg3, Selector selector) {
 //        System.out.println("** superPerform(" + arg1 + "," + arg2 + "," + arg3 + "," + selector + ") " + this);
-        return perform0s(selector, arg1, arg2);
+        return send(selfClass.superclass(), selector, arg1, arg2, arg3);
     }
 
-    public PrimObject perform(PrimObject arg1, PrimObject arg2, PrimObject arg3, PrimObject arg4, String selector) {
+    public PrimObject perform(PrimObject arg1, PrimObject arg2, PrimObject arg3, PrimObject arg4, Selector selector) {
 //        System.out.println("** perform(" + arg1 + "," + arg2 + "," + arg3 + "," + arg4 + "," + selector + ") " + this);
-        return perform0(selector, arg1, arg2);
+        return perform0(selector, arg1, arg2, arg3, arg4);
     }
 
-    public PrimObject superPerform(PrimObject arg1, PrimObject arg2, PrimObject arg3, PrimObject arg4, String selector) {
+    public PrimObject superPerform(PrimObject arg1, PrimObject arg2, PrimObject arg3, PrimObject arg4, Selector selector) {
 //        System.out.println("** superPerform(" + arg1 + "," + arg2 + "," + arg3 + "," + arg4 + "," + selector + ") " + this);
-        return perform0s(selector, arg1, arg2);
+        return perform0s(selector, arg1, arg2, arg3, arg4);
     }
 
-    public PrimObject perform(PrimObject arg1, PrimObject arg2, PrimObject arg3, PrimObject arg4, PrimObject arg5, String selector) {
+    public PrimObject perform(PrimObject arg1, PrimObject arg2, PrimObject arg3, PrimObject arg4, PrimObject arg5, Selector selector) {
 //        System.out.println("** perform(" + arg1 + "," + arg2 + "," + arg3 + "," + arg4 + "," + arg5 + "," + selector + ") " + this);
-        return perform0(selector, arg1, arg2);
+        return perform0(selector, arg1, arg2, arg3, arg4, arg5);
     }
 
-    public PrimObject superPerform(PrimObject arg1, PrimObject arg2, PrimObject arg3, PrimObject arg4, PrimObject arg5, String selector) {
+    public PrimObject superPerform(PrimObject arg1, PrimObject arg2, PrimObject arg3, PrimObject arg4, PrimObject arg5, Selector selector) {
 //        System.out.println("** superPerform(" + arg1 + "," + arg2 + "," + arg3 + "," + arg4 + "," + arg5 + "," + selector + ") " + this);
-        return perform0s(selector, arg1, arg2);
+        return perform0s(selector, arg1, arg2, arg3, arg4, arg5);
+    }
+
+    public PrimObject perform(PrimObject[] arguments, Selector selector) {
+        return perform0(selector, arguments);
+    }
+
+    public PrimObject superPerform(PrimObject[] arguments, Selector selector) {
+        return perform0s(selector, arguments);
+    }
+
+    protected PrimObject send(PrimObject cls, Selector selector) {
+        DispatchTable.Entry entry = cls.lookup(selector);
+        return entry.method().invoke(this, new PrimContext(this, entry.foundInClass(), selector));
+    }
+
+    protected PrimObject send(PrimObject cls, Selector selector, PrimObject arg1) {
+        DispatchTable.Entry entry = cls.lookup(selector);
+        return entry.method().invoke(this, new PrimContext(this, entry.foundInClass(), selector, arg1));
+    }
+
+    protected PrimObject send(PrimObject cls, Selector selector, PrimObject arg1, PrimObject arg2) {
+        DispatchTable.Entry entry = cls.lookup(selector);
+        return entry.method().invoke(this, new PrimContext(this, entry.foundInClass(), selector, arg1, arg2));
     }
 
-    protected PrimObject perform0(String selector, PrimObject ... arguments) {
+    protected PrimObject send(PrimObject cls, Selector selector, PrimObject arg1, PrimObject arg2, PrimObject arg3) {
+        DispatchTable.Entry entry = cls.lookup(selector);
+        return entry.method().invoke(this, new PrimContext(this, entry.foundInClass(), selector, arg1, arg2, arg3));
+    }
+
+    protected PrimObject perform0(Selector selector, PrimObject ... arguments) {
         return perform0(selfClass, selector, arguments);
     }
 
-    protected PrimObject perform0s(String selector, PrimObject ... arguments) {
+    protected PrimObject perform0s(Selector selector, PrimObject ... arguments) {
         return perform0(selfClass.superclass(), selector, arguments);
     }
 
-    protected PrimObject perform0(PrimObject foundInClass, String selector, PrimObject ... arguments) {
-        PrimObject cls = foundInClass;
-        while (!cls.includesSelector(selector))
-            cls = cls.superclass();
-        return apply(cls.methodFor(selector), cls, selector, arguments);
+    protected PrimObject perform0(PrimObject foundInClass, Selector selector, PrimObject ... arguments) {
+        DispatchTable.Entry entry = foundInClass.lookup(selector);
+        return apply(entry.method(), entry.foundInClass(), selector, arguments);
+    }
+
+    protected DispatchTable.Entry lookup(Selector selector) {
+        return new DispatchTable.Entry(this, selector, methodFor(selector), this);
     }
 
-    protected PrimObject apply(PrimObject method, PrimObject foundInClass, String selector, PrimObject ... arguments) {
+    protected PrimObject apply(PrimObject method, PrimObject foundInClass, Selector selector, PrimObject ... arguments) {
 //        System.out.println("** apply: #" + selector + " found in " + foundInClass + " to " + this);
         PrimObject result = method.invoke(this, new PrimContext(this, foundInClass, selector, arguments));
         //System.out.println("** result: " + String.valueOf(result));
@@ -236,8 +308,8 @@ public class PrimObject {
         return this;
     }
 
-    protected PrimObject methodFor(String selector) {
-        if ("subclass:".equals(selector))
+    protected PrimObject methodFor(Selector selector) {
+        if (selector == Selector.SUBCLASS)
             return PRIM_SUBCLASS;
         return PRIM_DOES_NOT_UNDERSTAND;
     }
@@ -246,7 +318,7 @@ public class PrimObject {
         throw new IllegalStateException("This receiver should not have received this message.");
     }
 
-    protected boolean includesSelector(String selector) {
+    protected boolean includesSelector(Selector selector) {
         return true;
     }
 
@@ -270,12 +342,110 @@ public class PrimObject {
         return ((LambdaBlock) javaValue()).apply(this, this, context);
     }
 
+    public PrimObject primitive62(PrimContext context) {
+        // Only PrimIndexedObjects have indexed variables.
+        return smalltalkInteger(0);
+    }
+
+    public PrimObject primitive71(PrimContext context) {
+        // basicNew: of a class that does not say how it stores its indexed variables holds them as objects.
+        return PrimIndexedObject.newArray(this, context);
+    }
+
+    public PrimObject primitive143(PrimContext context) {
+        return indexError(context.argumentAt(0));
+    }
+
+    public PrimObject primitive144(PrimContext context) {
+        return indexError(context.argumentAt(0));
+    }
+
+    protected PrimObject indexError(PrimObject index) {
+        return error("Index " + index + " is out of bounds.");
+    }
+
+    protected PrimObject error(String message) {
+        return perform(smalltalkString(message), Selector.ERROR);
+    }
+
+    public PrimObject primitive131(PrimContext context) {
+        // error: reports the error by raising it in Java, there being no debugger to open on it.
+        throw new SmalltalkErrorException("Object '" + this + "' error: " + context.argumentAt(0));
+    }
+
+    public PrimObject primitive73(PrimContext context) {
+        int index = instVarIndexAt(context);
+        if (index < 0)
+            return indexError(context.argumentAt(0));
+        return ((PrimClass) selfClass).instVarAt(this, index);
+    }
+
+    public PrimObject primitive74(PrimContext context) {
+        int index = instVarIndexAt(context);
+        if (index < 0)
+            return indexError(context.argumentAt(0));
+        PrimObject value = context.argumentAt(1);
+        ((PrimClass) selfClass).instVarAtPut(this, index, value);
+        return value;
+    }
+
+    private int instVarIndexAt(PrimContext context) {
+        int count = selfClass instanceof PrimClass ? ((PrimClass) selfClass).instVarCountOf(this) : 0;
+        return PrimIndexedObject.indexIn(context, count);
+    }
+
+    public PrimObject primitive75(PrimContext context) {
+        return smalltalkInteger(System.identityHashCode(this));
+    }
+
+    public PrimObject primitive83(PrimContext context) {
+        if (!isSelectorAt(context))
+            return error("The selector must be a String or Symbol.");
+        return perform(selectorAt(context));
+    }
+
+    public PrimObject primitive84(PrimContext context) {
+        if (!isSelectorAt(context))
+            return error("The selector must be a String or Symbol.");
+        return perform(context.argumentAt(1), selectorAt(context));
+    }
+
+    public PrimObject primitive140(PrimContext context) {
+        if (!isSelectorAt(context))
+            return error("The selector must be a String or Symbol.");
+        return perform(context.argumentAt(1), context.argumentAt(2), selectorAt(context));
+    }
+
+    public PrimObject primitive141(PrimContext context) {
+        if (!isSelectorAt(context))
+            return error("The selector must be a String or Symbol.");
+        return perform(context.argumentAt(1), context.argumentAt(2), context.argumentAt(3), selectorAt(context));
+    }
+
+    public PrimObject primitive142(PrimContext context) {
+        if (!isSelectorAt(context))
+            return error("The selector must be a String or Symbol.");
+        PrimObject arguments = context.argumentAt(1);
+        if (!(arguments instanceof PrimArray))
+            return error("The arguments must be an Array.");
+        return perform(((PrimArray) arguments).elements().clone(), selectorAt(context));
+    }
+
+    private static boolean isSelectorAt(PrimContext context) {
+        return context.argumentAt(0) instanceof PrimString;
+    }
+
+    private Selector selectorAt(PrimContext context) {
+        return Selector.named(((PrimString) context.argumentAt(0)).value());
+    }
+
     public PrimObject primitive110(PrimContext context) {
 //        System.out.println("primitive110: " + context);
-        if (this.equals(context.argumentAt(0)))
-            return classLoader().trueInstance();
+        SmalltalkClassLoader smalltalkClassLoader = classLoader();
+        if (this == context.argumentAt(0))
+            return smalltalkClassLoader.trueInstance();
         else
-            return classLoader().falseInstance();
+            return smalltalkClassLoader.falseInstance();
     }
 
     public PrimObject primitive111(PrimContext context) {
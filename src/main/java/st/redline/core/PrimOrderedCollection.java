@@ -0,0 +1,218 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution. */
+package st.redline.core;
+
+// An OrderedCollection held in a circular array that doubles when full.
+
+public class PrimOrderedCollection extends PrimObject {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private PrimObject[] elements;
+    private int first;
+    private int size;
+
+    PrimOrderedCollection(int capacity) {
+        int length = INITIAL_CAPACITY;
+        while (length < capacity)
+            length <<= 1;
+        this.elements = new PrimObject[length];
+    }
+
+    private int slot(int index) {
+        return (first + index) & (elements.length - 1);
+    }
+
+    private void ensureRoom() {
+        if (size < elements.length)
+            return;
+        PrimObject[] grown = new PrimObject[elements.length * 2];
+        int head = elements.length - first;
+        System.arraycopy(elements, first, grown, 0, Math.min(head, size));
+        if (head < size)
+            System.arraycopy(elements, 0, grown, head, size - head);
+        elements = grown;
+        first = 0;
+    }
+
+    private void addLast(PrimObject element) {
+        ensureRoom();
+        elements[slot(size)] = element;
+        size++;
+    }
+
+    private void addFirst(PrimObject element) {
+        ensureRoom();
+        first = (first - 1) & (elements.length - 1);
+        elements[first] = element;
+        size++;
+    }
+
+    private PrimObject removeFirst() {
+        PrimObject element = elements[first];
+        elements[first] = null;
+        first = (first + 1) & (elements.length - 1);
+        size--;
+        return element;
+    }
+
+    private PrimObject removeLast() {
+        int last = slot(size - 1);
+        PrimObject element = elements[last];
+        elements[last] = null;
+        size--;
+        return element;
+    }
+
+    private static PrimOrderedCollection collection(PrimObject receiver) {
+        return (PrimOrderedCollection) receiver;
+    }
+
+    private static PrimOrderedCollection newOn(PrimObject cls, int capacity) {
+        PrimOrderedCollection collection = new PrimOrderedCollection(capacity);
+        collection.selfClass(cls);
+        return collection;
+    }
+
+    private static PrimObject emptyError(PrimObject receiver) {
+        return receiver.error("This collection is empty.");
+    }
+
+    // Instance creation, sent to the class.
+
+    public static PrimObject newOrderedCollection(PrimObject receiver, PrimContext context) {
+        return newOn(receiver, INITIAL_CAPACITY);
+    }
+
+    public static PrimObject newOrderedCollectionSized(PrimObject receiver, PrimContext context) {
+        PrimObject capacity = context.argumentAt(0);
+        if (!(capacity instanceof PrimSmallInteger))
+            return receiver.error("The capacity must be a SmallInteger.");
+        return newOn(receiver, (int) Math.min(Math.max(((PrimSmallInteger) capacity).value(), 0), 1 << 30));
+    }
+
+    // Accessing.
+
+    public static PrimObject size(PrimObject receiver, PrimContext context) {
+        return receiver.smalltalkInteger(collection(receiver).size);
+    }
+
+    public static PrimObject at(PrimObject receiver, PrimContext context) {
+        int index = PrimIndexedObject.indexIn(context, collection(receiver).size);
+        if (index < 0)
+            return receiver.indexError(context.argumentAt(0));
+        PrimOrderedCollection collection = collection(receiver);
+        return collection.elements[collection.slot(index)];
+    }
+
+    public static PrimObject atPut(PrimObject receiver, PrimContext context) {
+        int index = PrimIndexedObject.indexIn(context, collection(receiver).size);
+        if (index < 0)
+            return receiver.indexError(context.argumentAt(0));
+        PrimOrderedCollection collection = collection(receiver);
+        PrimObject value = context.argumentAt(1);
+        collection.elements[collection.slot(index)] = value;
+        return value;
+    }
+
+    public static PrimObject first(PrimObject receiver, PrimContext context) {
+        PrimOrderedCollection collection = collection(receiver);
+        if (collection.size == 0)
+            return emptyError(receiver);
+        return collection.elements[collection.first];
+    }
+
+    public static PrimObject last(PrimObject receiver, PrimContext context) {
+        PrimOrderedCollection collection = collection(receiver);
+        if (collection.size == 0)
+            return emptyError(receiver);
+        return collection.elements[collection.slot(collection.size - 1)];
+    }
+
+    // Adding.
+
+    public static PrimObject addFirst(PrimObject receiver, PrimContext context) {
+        PrimObject element = context.argumentAt(0);
+        collection(receiver).addFirst(element);
+        return element;
+    }
+
+    public static PrimObject addLast(PrimObject receiver, PrimContext context) {
+        PrimObject element = context.argumentAt(0);
+        collection(receiver).addLast(element);
+        return element;
+    }
+
+    // Removing.
+
+    public static PrimObject removeFirst(PrimObject receiver, PrimContext context) {
+        PrimOrderedCollection collection = collection(receiver);
+        if (collection.size == 0)
+            return emptyError(receiver);
+        return collection.removeFirst();
+    }
+
+    public static PrimObject removeLast(PrimObject receiver, PrimContext context) {
+        PrimOrderedCollection collection = collection(receiver);
+        if (collection.size == 0)
+            return emptyError(receiver);
+        return collection.removeLast();
+    }
+
+    // Enumerating. Each element is read afresh by index, so the block may add to or remove from the collection
+    // without the loop reading a stale slot.
+
+    public static PrimObject doBlock(PrimObject receiver, PrimContext context) {
+        PrimOrderedCollection collection = collection(receiver);
+        PrimObject block = context.argumentAt(0);
+        for (int i = 0; i < collection.size; i++)
+            PrimBlock.value(block, collection.elements[collection.slot(i)]);
+        return receiver;
+    }
+
+    public static PrimObject reverseDo(PrimObject receiver, PrimContext context) {
+        PrimOrderedCollection collection = collection(receiver);
+        PrimObject block = context.argumentAt(0);
+        for (int i = collection.size - 1; i >= 0; i--)
+            if (i < collection.size)
+                PrimBlock.value(block, collection.elements[collection.slot(i)]);
+        return receiver;
+    }
+
+    public static PrimObject collect(PrimObject receiver, PrimContext context) {
+        PrimOrderedCollection collection = collection(receiver);
+        PrimObject block = context.argumentAt(0);
+        PrimOrderedCollection result = newOn(receiver.selfClass(), collection.size);
+        for (int i = 0; i < collection.size; i++)
+            result.addLast(PrimBlock.value(block, collection.elements[collection.slot(i)]));
+        return result;
+    }
+
+    public static PrimObject select(PrimObject receiver, PrimContext context) {
+        return filter(receiver, context, receiver.referenceTrue());
+    }
+
+    public static PrimObject reject(PrimObject receiver, PrimContext context) {
+        return filter(receiver, context, receiver.referenceFalse());
+    }
+
+    private static PrimObject filter(PrimObject receiver, PrimContext context, PrimObject wanted) {
+        PrimOrderedCollection collection = collection(receiver);
+        PrimObject block = context.argumentAt(0);
+        PrimOrderedCollection result = newOn(receiver.selfClass(), INITIAL_CAPACITY);
+        for (int i = 0; i < collection.size; i++) {
+            PrimObject element = collection.elements[collection.slot(i)];
+            if (PrimBlock.value(block, element) == wanted)
+                result.addLast(element);
+        }
+        return result;
+    }
+
+    public static PrimObject injectInto(PrimObject receiver, PrimContext context) {
+        PrimOrderedCollection collection = collection(receiver);
+        PrimObject value = context.argumentAt(0);
+        PrimObject block = context.argumentAt(1);
+        for (int i = 0; i < collection.size; i++)
+            value = PrimBlock.value(block, value, collection.elements[collection.slot(i)]);
+        return value;
+    }
+}
@@ -0,0 +1,25 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution. */
+package st.redline.core;
+
+// A SmallInteger, its value held unboxed. javaValue() answers a Long for code that still reads values generically.
+
+public class PrimSmallInteger extends PrimObject {
+
+    private final long value;
+
+    public PrimSmallInteger(long value) {
+        this.value = value;
+    }
+
+    public long value() {
+        return value;
+    }
+
+    public Object javaValue() {
+        return value;
+    }
+
+    public String toString() {
+        return Long.toString(value);
+    }
+}
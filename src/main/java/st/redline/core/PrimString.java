@@ -0,0 +1,41 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution. */
+package st.redline.core;
+
+// A String, holding its characters as a java.lang.String.
+
+public class PrimString extends PrimObject {
+
+    private final String value;
+
+    public PrimString(String value) {
+        this.value = value;
+    }
+
+    public String value() {
+        return value;
+    }
+
+    public Object javaValue() {
+        return value;
+    }
+
+    public PrimObject primitive62(PrimContext context) {
+        return smalltalkInteger(value.length());
+    }
+
+    public PrimObject primitive143(PrimContext context) {
+        // The characters are an immutable java.lang.String.
+        return error("Improper store into indexable object.");
+    }
+
+    public PrimObject primitive144(PrimContext context) {
+        int index = PrimIndexedObject.indexIn(context, value.length());
+        if (index < 0)
+            return indexError(context.argumentAt(0));
+        return smalltalkCharacter(value.charAt(index));
+    }
+
+    public String toString() {
+        return value;
+    }
+}
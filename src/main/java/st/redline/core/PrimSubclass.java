@@ -3,17 +3,22 @@ package st.redline.core;
 
 import st.redline.classloader.SmalltalkClassLoader;
 
+import java.util.*;
+
 public class PrimSubclass extends PrimObject {
 
     public static final PrimObject PRIM_SUBCLASS = new PrimSubclass();
 
+    private static final Selector BASIC_NEW = Selector.named("basicNew");
+    private static final Selector BASIC_NEW_SIZED = Selector.named("basicNew:");
+
     private PrimObject theMetaclass;
 
     protected PrimObject invoke(PrimObject receiver, PrimContext primContext) {
 //        System.out.println("PrimSubclass invoke: " + String.valueOf(primContext.argumentJavaValueAt(0)));
         assert receiver.equals(primContext.receiver());
 
-        String subclassName = String.valueOf(primContext.argumentJavaValueAt(0));
+        String subclassName = ((PrimString) primContext.argumentAt(0)).value();
         PrimObject superclass = primContext.receiver();
         PrimClass newClass;
         PrimClass newMeta;
@@ -38,12 +43,45 @@ public class PrimSubclass extends PrimObject {
         if (!bootstrapping) {
             SmalltalkClassLoader classLoader = classLoader();
             String fullQualifiedName = makeFullyQualifiedName(classLoader, subclassName);
+            defineInstanceLayout(classLoader, fullQualifiedName, newClass, superclass, primContext);
             classLoader.cacheObject(fullQualifiedName, newClass);
         }
 
         return newClass;
     }
 
+    private void defineInstanceLayout(SmalltalkClassLoader classLoader, String fullQualifiedName, PrimClass newClass, PrimObject superclass, PrimContext primContext) {
+        // The instance variables are the second argument of subclass:instanceVariableNames:..., following those of
+        // the superclass.
+        List<String> inherited = Collections.emptyList();
+        Class<? extends PrimObject> superInstanceClass = PrimObject.class;
+        if (superclass instanceof PrimClass) {
+            inherited = ((PrimClass) superclass).instanceVariableNames();
+            superInstanceClass = ((PrimClass) superclass).instanceClass();
+        }
+        List<String> declared = new ArrayList<String>();
+        if (primContext.argumentCount() > 1)
+            for (String name : ((PrimString) primContext.argumentAt(1)).value().trim().split("\\s+"))
+                if (!name.isEmpty()) {
+                    if (inherited.contains(name) || declared.contains(name))
+                        throw new RuntimeException("Instance variable '" + name + "' of '" + fullQualifiedName + "' is already defined.");
+                    declared.add(name);
+                }
+        if (!declared.isEmpty())
+            refuseSelfInstantiating(fullQualifiedName, superclass);
+        List<String> all = new ArrayList<String>(inherited);
+        all.addAll(declared);
+        newClass.instanceLayout(all, classLoader.defineInstanceClass(fullQualifiedName, superInstanceClass, declared));
+    }
+
+    private void refuseSelfInstantiating(String fullQualifiedName, PrimObject superclass) {
+        // Classes whose instances are made by a primitive of their own, such as collections, have no instance class.
+        for (PrimObject ancestor = superclass; ancestor instanceof PrimClass; ancestor = ((PrimClass) ancestor).superclass())
+            if (ancestor.selfClass() instanceof PrimClass
+                    && (((PrimClass) ancestor.selfClass()).includesSelector(BASIC_NEW) || ((PrimClass) ancestor.selfClass()).includesSelector(BASIC_NEW_SIZED)))
+                throw new RuntimeException("'" + fullQualifiedName + "' cannot declare instance variables, as instances of '" + ancestor + "' are made by the class itself.");
+    }
+
     private String makeFullyQualifiedName(SmalltalkClassLoader classLoader, String name) {
         String instantiationName = classLoader.peekInstantiationName();
         if (instantiationName != null && instantiationName.endsWith(name))
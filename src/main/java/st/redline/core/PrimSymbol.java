@@ -0,0 +1,11 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution. */
+package st.redline.core;
+
+// A Symbol. Once bootstrapping is over there is one per name, see SymbolTable.
+
+public class PrimSymbol extends PrimString {
+
+    public PrimSymbol(String value) {
+        super(value);
+    }
+}
@@ -0,0 +1,29 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution. */
+package st.redline.core;
+
+// A WordArray, its elements SmallIntegers from 0 to 2^32 - 1 held in an int[].
+
+public class PrimWordArray extends PrimIndexedObject {
+
+    private final int[] words;
+
+    public PrimWordArray(int size) {
+        this.words = new int[size];
+    }
+
+    public int size() {
+        return words.length;
+    }
+
+    protected PrimObject at(int index) {
+        return smalltalkInteger(words[index] & 0xFFFFFFFFL);
+    }
+
+    protected boolean atPut(int index, PrimObject value) {
+        long integer = smallIntegerValue(value, 0, 0xFFFFFFFFL);
+        if (integer < 0)
+            return false;
+        words[index] = (int) integer;
+        return true;
+    }
+}
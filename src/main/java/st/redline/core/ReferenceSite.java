@@ -0,0 +1,75 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution. */
+package st.redline.core;
+
+import java.lang.invoke.*;
+import java.util.*;
+
+import static java.lang.invoke.MethodType.methodType;
+
+// The invokedynamic call site of a reference to a global, linked to the object found until its name is bound again.
+
+public class ReferenceSite extends MutableCallSite {
+
+    private static final MethodHandle RESOLVE;
+    static {
+        try {
+            RESOLVE = MethodHandles.lookup().findVirtual(ReferenceSite.class, "resolve", methodType(PrimObject.class, PrimObject.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static final Map<String, SwitchPoint> SWITCH_POINTS = new HashMap<String, SwitchPoint>();
+    private static long resolutions;
+
+    private final String name;
+    private final MethodHandle resolve;
+
+    public static CallSite bootstrap(MethodHandles.Lookup lookup, String name, MethodType type, String reference) {
+        return new ReferenceSite(type, reference);
+    }
+
+    public ReferenceSite(MethodType type, String name) {
+        super(type);
+        this.name = name;
+        this.resolve = RESOLVE.bindTo(this).asType(type);
+        setTarget(resolve);
+    }
+
+    private PrimObject resolve(PrimObject receiver) {
+        // Take the SwitchPoint before the lookup so a binding made in between leaves this link already invalid.
+        String qualifiedName = receiver.importFor(name);
+        SwitchPoint switchPoint = switchPointFor(qualifiedName);
+        PrimObject object = receiver.findObject(qualifiedName);
+        resolutions++;
+        if (!receiver.isBootstrapping())
+            setTarget(switchPoint.guardWithTest(MethodHandles.dropArguments(MethodHandles.constant(PrimObject.class, object), 0, PrimObject.class).asType(type()), resolve));
+        return object;
+    }
+
+    static synchronized SwitchPoint switchPointFor(String qualifiedName) {
+        SwitchPoint switchPoint = SWITCH_POINTS.get(qualifiedName);
+        if (switchPoint == null) {
+            switchPoint = new SwitchPoint();
+            SWITCH_POINTS.put(qualifiedName, switchPoint);
+        }
+        return switchPoint;
+    }
+
+    public static synchronized void invalidate(String qualifiedName) {
+        SwitchPoint switchPoint = SWITCH_POINTS.remove(qualifiedName);
+        if (switchPoint != null)
+            SwitchPoint.invalidateAll(new SwitchPoint[] { switchPoint });
+    }
+
+    public static synchronized void invalidateAll() {
+        if (SWITCH_POINTS.isEmpty())
+            return;
+        SwitchPoint.invalidateAll(SWITCH_POINTS.values().toArray(new SwitchPoint[SWITCH_POINTS.size()]));
+        SWITCH_POINTS.clear();
+    }
+
+    public static String statistics() {
+        return "ReferenceSite resolutions: " + resolutions;
+    }
+}
@@ -0,0 +1,91 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution. */
+package st.redline.core;
+
+import java.lang.invoke.*;
+import java.util.concurrent.*;
+
+// The canonical, interned form of a message selector. There is exactly one Selector per selector name, so the
+// dispatch path compares selectors by identity and indexes tables by their dense id, never by String hash or equals.
+
+public final class Selector {
+
+    private static final ConcurrentMap<String, Selector> SELECTORS = new ConcurrentHashMap<String, Selector>();
+    private static volatile Selector[] selectorsById = new Selector[256];
+    private static int count = 0;
+
+    public static final Selector NEW = named("new");
+    public static final Selector ERROR = named("error:");
+    public static final Selector SUBCLASS = named("subclass:");
+    public static final Selector PRIM_DOES_NOT_UNDERSTAND = named("primDoesNotUnderstand:");
+
+    private final String name;
+    private final int id;
+
+    private Selector(String name, int id) {
+        this.name = name;
+        this.id = id;
+    }
+
+    public static Selector named(String name) {
+        Selector selector = SELECTORS.get(name);
+        if (selector != null)
+            return selector;
+        return intern(name);
+    }
+
+    private static synchronized Selector intern(String name) {
+        Selector selector = SELECTORS.get(name);
+        if (selector != null)
+            return selector;
+        selector = new Selector(name, count);
+        Selector[] byId = selectorsById;
+        if (count == byId.length) {
+            Selector[] grown = new Selector[byId.length * 2];
+            System.arraycopy(byId, 0, grown, 0, byId.length);
+            byId = grown;
+        }
+        byId[count++] = selector;
+        selectorsById = byId;
+        SELECTORS.put(name, selector);
+        return selector;
+    }
+
+    public static Selector at(int id) {
+        return selectorsById[id];
+    }
+
+    public static synchronized int count() {
+        return count;
+    }
+
+    public static CallSite bootstrap(MethodHandles.Lookup lookup, String name, MethodType type, String selector) {
+        // Generated code loads a Selector through an invokedynamic constant, so it is interned once per site.
+        return new ConstantCallSite(MethodHandles.constant(Selector.class, named(selector)));
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int id() {
+        return id;
+    }
+
+    public int numArgs() {
+        int colons = 0;
+        for (int i = 0, l = name.length(); i < l; i++)
+            if (name.charAt(i) == ':')
+                colons++;
+        if (colons == 0 && !Character.isLetter(name.charAt(0)))
+            return 1;
+        return colons;
+    }
+
+    public int hashCode() {
+        return id;
+    }
+
+    public String toString() {
+        return name;
+    }
+}
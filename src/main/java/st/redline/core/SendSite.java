@@ -0,0 +1,166 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution. */
+package st.redline.core;
+
+import java.lang.invoke.*;
+import java.util.*;
+
+import static java.lang.invoke.MethodType.methodType;
+
+// The invokedynamic call site of a message send, an inline cache guarded on the receiver's selfClass.
+
+public class SendSite extends MutableCallSite {
+
+    public static final int MAX_POLYMORPHIC_DEGREE = 8;
+
+    private static final MethodHandle FALLBACK;
+    private static final MethodHandle IS_CLASS;
+    private static final MethodHandle INVOKE_METHOD;
+    private static final MethodHandle APPLY_LAMBDA;
+    private static final MethodHandle[] PERFORM = new MethodHandle[6];
+    private static final MethodHandle[] CONTEXT = new MethodHandle[PrimContext.MAX_FIELD_ARGUMENTS + 1];
+    private static final MethodHandle PERFORM_N;
+    private static final MethodHandle CONTEXT_N;
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            FALLBACK = lookup.findVirtual(SendSite.class, "fallback", methodType(PrimObject.class, PrimObject.class, PrimObject[].class));
+            IS_CLASS = lookup.findStatic(SendSite.class, "isClass", methodType(boolean.class, PrimObject.class, PrimObject.class));
+            INVOKE_METHOD = lookup.findVirtual(PrimObject.class, "invoke", methodType(PrimObject.class, PrimObject.class, PrimContext.class));
+            APPLY_LAMBDA = lookup.findVirtual(LambdaBlock.class, "apply", methodType(PrimObject.class, PrimObject.class, PrimObject.class, PrimContext.class));
+            for (int i = 0; i < PERFORM.length; i++)
+                PERFORM[i] = lookup.findVirtual(PrimObject.class, "perform", performType(i));
+            PERFORM_N = lookup.findVirtual(PrimObject.class, "perform", methodType(PrimObject.class, PrimObject[].class, Selector.class));
+            for (int i = 0; i < CONTEXT.length; i++)
+                CONTEXT[i] = lookup.findConstructor(PrimContext.class, methodType(void.class, PrimObject.class, PrimObject.class, Selector.class).appendParameterTypes(Collections.nCopies(i, PrimObject.class)));
+            CONTEXT_N = lookup.findConstructor(PrimContext.class, methodType(void.class, PrimObject.class, PrimObject.class, Selector.class, PrimObject[].class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodType performType(int argumentCount) {
+        return methodType(PrimObject.class, Collections.nCopies(argumentCount, PrimObject.class)).appendParameterTypes(Selector.class);
+    }
+
+    private static final Map<Selector, SwitchPoint> SWITCH_POINTS = new IdentityHashMap<Selector, SwitchPoint>();
+
+    private final Selector selector;
+    private final int argumentCount;
+    private final MethodHandle fallback;
+    private SwitchPoint switchPoint;
+    private MethodHandle chain;
+    private int degree;
+
+    public static CallSite bootstrap(MethodHandles.Lookup lookup, String name, MethodType type, String selector) {
+        return new SendSite(type, Selector.named(selector));
+    }
+
+    private static MethodHandle perform(MethodType type, Selector selector) {
+        // The perform overload of the send's arity with the selector bound, collecting into an array only past them.
+        int argumentCount = type.parameterCount() - 1;
+        if (argumentCount < PERFORM.length)
+            return MethodHandles.insertArguments(PERFORM[argumentCount], argumentCount + 1, selector).asType(type);
+        return MethodHandles.insertArguments(PERFORM_N, 2, selector).asCollector(PrimObject[].class, argumentCount).asType(type);
+    }
+
+    public SendSite(MethodType type, Selector selector) {
+        super(type);
+        this.selector = selector;
+        this.argumentCount = type.parameterCount() - 1;
+        this.fallback = FALLBACK.bindTo(this).asCollector(PrimObject[].class, argumentCount).asType(type);
+        this.chain = fallback;
+        setTarget(fallback);
+    }
+
+    public Selector selector() {
+        return selector;
+    }
+
+    public synchronized int degree() {
+        return degree;
+    }
+
+    private PrimObject fallback(PrimObject receiver, PrimObject[] arguments) {
+        // Take the SwitchPoint before the lookup so a method added in between leaves this link already invalid.
+        SwitchPoint current = switchPointFor(selector);
+        PrimObject cls = receiver.selfClass();
+        DispatchTable.Entry entry = cls.lookup(selector);
+        relink(current, cls, entry);
+        return receiver.apply(entry.method(), entry.foundInClass(), selector, arguments);
+    }
+
+    private synchronized void relink(SwitchPoint current, PrimObject cls, DispatchTable.Entry entry) {
+        if (switchPoint != current) {
+            switchPoint = current;
+            chain = fallback;
+            degree = 0;
+        }
+        if (degree == MAX_POLYMORPHIC_DEGREE) {
+            setTarget(perform(type(), selector));
+            return;
+        }
+        MethodHandle test = MethodHandles.dropArguments(IS_CLASS.bindTo(cls), 1, type().parameterList().subList(1, argumentCount + 1));
+        chain = MethodHandles.guardWithTest(test, activation(type(), selector, entry), chain);
+        degree++;
+        setTarget(switchPoint.guardWithTest(chain, fallback));
+    }
+
+    static MethodHandle activation(MethodType type, Selector selector, DispatchTable.Entry entry) {
+        // (receiver, arguments...) of the site type -> method result.
+        int argumentCount = type.parameterCount() - 1;
+        PrimObject method = entry.method();
+        if (method instanceof PrimMethod && method.javaValue() instanceof DirectMethod) {
+            // (receiver, arguments...) -> entry(receiver, receiver, arguments...), no context at all.
+            DirectMethod directMethod = (DirectMethod) method.javaValue();
+            if (directMethod.argumentCount() == argumentCount) {
+                int[] reorder = new int[argumentCount + 2];
+                for (int i = 0; i < argumentCount; i++)
+                    reorder[i + 2] = i + 1;
+                return MethodHandles.permuteArguments(directMethod.entry(), type, reorder);
+            }
+        }
+        // (thiz, receiver, context) -> method result, with the LambdaBlock bound as a constant when there is one.
+        MethodHandle invoker;
+        if (method instanceof PrimMethod)
+            invoker = APPLY_LAMBDA.bindTo(method.javaValue());
+        else
+            invoker = MethodHandles.dropArguments(INVOKE_METHOD.bindTo(method), 0, PrimObject.class);
+        // (receiver, arguments...) -> context, the arguments held in fields where the arity allows.
+        MethodHandle context = argumentCount < CONTEXT.length
+                ? CONTEXT[argumentCount]
+                : CONTEXT_N.asCollector(PrimObject[].class, argumentCount);
+        context = MethodHandles.insertArguments(context, 1, entry.foundInClass(), selector);
+        // (receiver, arguments...) -> invoker(receiver, receiver, context(receiver, arguments...))
+        MethodHandle target = MethodHandles.collectArguments(invoker, 2, context);
+        int[] reorder = new int[argumentCount + 3];
+        for (int i = 0; i < argumentCount; i++)
+            reorder[i + 3] = i + 1;
+        return MethodHandles.permuteArguments(target, type, reorder);
+    }
+
+    private static boolean isClass(PrimObject cls, PrimObject receiver) {
+        return receiver.selfClass() == cls;
+    }
+
+    static synchronized SwitchPoint switchPointFor(Selector selector) {
+        SwitchPoint switchPoint = SWITCH_POINTS.get(selector);
+        if (switchPoint == null) {
+            switchPoint = new SwitchPoint();
+            SWITCH_POINTS.put(selector, switchPoint);
+        }
+        return switchPoint;
+    }
+
+    public static synchronized void invalidate(Selector selector) {
+        SwitchPoint switchPoint = SWITCH_POINTS.remove(selector);
+        if (switchPoint != null)
+            SwitchPoint.invalidateAll(new SwitchPoint[] { switchPoint });
+    }
+
+    public static synchronized void invalidateAll() {
+        if (SWITCH_POINTS.isEmpty())
+            return;
+        SwitchPoint.invalidateAll(SWITCH_POINTS.values().toArray(new SwitchPoint[SWITCH_POINTS.size()]));
+        SWITCH_POINTS.clear();
+    }
+}
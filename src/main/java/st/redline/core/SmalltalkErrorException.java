@@ -0,0 +1,9 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution. */
+
+package st.redline.core;
+
+public class SmalltalkErrorException extends RuntimeException {
+    public SmalltalkErrorException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,84 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution. */
+package st.redline.core;
+
+import java.lang.invoke.*;
+
+import static java.lang.invoke.MethodType.methodType;
+
+// The invokedynamic call site of a send to super, looked up from the superclass of the class the method was found in.
+
+public class SuperSendSite extends MutableCallSite {
+
+    private static final MethodHandle FALLBACK;
+    private static final MethodHandle IS_LOOKUP_CLASS;
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            FALLBACK = lookup.findVirtual(SuperSendSite.class, "fallback", methodType(PrimObject.class, PrimObject.class, PrimContext.class, PrimObject[].class));
+            IS_LOOKUP_CLASS = lookup.findStatic(SuperSendSite.class, "isLookupClass", methodType(boolean.class, PrimObject.class, PrimContext.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Selector selector;
+    private final int argumentCount;
+    private final MethodHandle fallback;
+    private SwitchPoint switchPoint;
+    private MethodHandle chain;
+    private int degree;
+
+    public static CallSite bootstrap(MethodHandles.Lookup lookup, String name, MethodType type, String selector) {
+        return new SuperSendSite(type, Selector.named(selector));
+    }
+
+    public SuperSendSite(MethodType type, Selector selector) {
+        super(type);
+        this.selector = selector;
+        this.argumentCount = type.parameterCount() - 2;
+        // (receiver, arguments..., context) -> fallback(receiver, context, arguments)
+        int[] reorder = new int[argumentCount + 2];
+        reorder[1] = argumentCount + 1;
+        for (int i = 0; i < argumentCount; i++)
+            reorder[i + 2] = i + 1;
+        this.fallback = MethodHandles.permuteArguments(FALLBACK.bindTo(this).asCollector(PrimObject[].class, argumentCount), type, reorder);
+        this.chain = fallback;
+        setTarget(fallback);
+    }
+
+    public Selector selector() {
+        return selector;
+    }
+
+    private PrimObject fallback(PrimObject receiver, PrimContext context, PrimObject[] arguments) {
+        PrimObject definingClass = context.lookupClass();
+        if (definingClass == null) {
+            // Not sent from a method, so there is no defining class to bind to.
+            DispatchTable.Entry entry = receiver.selfClass().superclass().lookup(selector);
+            return receiver.apply(entry.method(), entry.foundInClass(), selector, arguments);
+        }
+        SwitchPoint current = SendSite.switchPointFor(selector);
+        DispatchTable.Entry entry = definingClass.superclass().lookup(selector);
+        relink(current, definingClass, entry);
+        return receiver.apply(entry.method(), entry.foundInClass(), selector, arguments);
+    }
+
+    private synchronized void relink(SwitchPoint current, PrimObject definingClass, DispatchTable.Entry entry) {
+        if (switchPoint != current) {
+            switchPoint = current;
+            chain = fallback;
+            degree = 0;
+        }
+        if (degree == SendSite.MAX_POLYMORPHIC_DEGREE)
+            return;
+        MethodHandle test = MethodHandles.dropArguments(IS_LOOKUP_CLASS.bindTo(definingClass), 0, type().parameterList().subList(0, argumentCount + 1));
+        MethodHandle target = MethodHandles.dropArguments(SendSite.activation(type().dropParameterTypes(argumentCount + 1, argumentCount + 2), selector, entry), argumentCount + 1, PrimContext.class);
+        chain = MethodHandles.guardWithTest(test, target, chain);
+        degree++;
+        setTarget(switchPoint.guardWithTest(chain, fallback));
+    }
+
+    private static boolean isLookupClass(PrimObject cls, PrimContext context) {
+        return context.lookupClass() == cls;
+    }
+}
@@ -0,0 +1,80 @@
+/* Redline Smalltalk, Copyright (c) James C. Ladd. All rights reserved. See LICENSE in the root of this distribution. */
+package st.redline.core;
+
+import java.lang.ref.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// The runtime-wide table of Symbols. There is exactly one Symbol object per distinct name while anything refers to
+// it, so symbols compare and hash by identity. The table holds its Symbols weakly and drops the entries of those
+// collected as it is next written to.
+
+public final class SymbolTable {
+
+    private static final ConcurrentMap<String, SymbolReference> SYMBOLS = new ConcurrentHashMap<String, SymbolReference>();
+    private static final ReferenceQueue<PrimObject> COLLECTED = new ReferenceQueue<PrimObject>();
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    private SymbolTable() {
+    }
+
+    public static PrimObject intern(String name, PrimObject creator) {
+        PrimObject symbol = symbolAt(name);
+        if (symbol != null) {
+            hits.incrementAndGet();
+            return symbol;
+        }
+        return add(name, creator);
+    }
+
+    private static synchronized PrimObject add(String name, PrimObject creator) {
+        PrimObject symbol = symbolAt(name);
+        if (symbol != null) {
+            hits.incrementAndGet();
+            return symbol;
+        }
+        misses.incrementAndGet();
+        expungeCollected();
+        symbol = creator.instanceOfClass("Symbol", new PrimSymbol(name));
+        SYMBOLS.put(name, new SymbolReference(name, symbol));
+        return symbol;
+    }
+
+    private static PrimObject symbolAt(String name) {
+        SymbolReference reference = SYMBOLS.get(name);
+        return reference != null ? reference.get() : null;
+    }
+
+    private static void expungeCollected() {
+        Reference<? extends PrimObject> reference;
+        while ((reference = COLLECTED.poll()) != null)
+            SYMBOLS.remove(((SymbolReference) reference).name, reference);
+    }
+
+    public static int size() {
+        return SYMBOLS.size();
+    }
+
+    public static long hits() {
+        return hits.get();
+    }
+
+    public static long misses() {
+        return misses.get();
+    }
+
+    public static String statistics() {
+        return "SymbolTable size: " + size() + " hits: " + hits.get() + " misses: " + misses.get();
+    }
+
+    private static class SymbolReference extends WeakReference<PrimObject> {
+
+        private final String name;
+
+        SymbolReference(String name, PrimObject symbol) {
+            super(symbol, COLLECTED);
+            this.name = name;
+        }
+    }
+}